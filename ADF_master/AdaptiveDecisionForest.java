@@ -19,6 +19,7 @@
  */
 package moa.classifiers.meta;
 
+import com.github.javacliparser.FlagOption;
 import com.github.javacliparser.FloatOption;
 import com.github.javacliparser.IntOption;
 import com.github.javacliparser.MultiChoiceOption;
@@ -28,29 +29,72 @@ import moa.classifiers.MultiClassClassifier;
 import moa.evaluation.BasicClassificationPerformanceEvaluator;
 import moa.options.ClassOption;
 import com.yahoo.labs.samoa.instances.Instance;
-import com.yahoo.labs.samoa.instances.SamoaToWekaInstanceConverter;
+import com.yahoo.labs.samoa.instances.Instances;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+import com.yahoo.labs.samoa.instances.WekaToSamoaInstanceConverter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 import moa.capabilities.Capability;
 import moa.capabilities.ImmutableCapabilities;
+import moa.classifiers.core.conditionaltests.InstanceConditionalTest;
+import moa.classifiers.core.conditionaltests.NominalAttributeMultiwayTest;
+import moa.classifiers.core.conditionaltests.NumericAttributeBinaryTest;
 import moa.classifiers.trees.HoeffdingTree;
 import moa.core.DoubleVector;
 import moa.core.Measurement;
 import moa.core.MiscUtils;
 import moa.options.WEKAClassOption;
 import moa.streams.ArffFileStream;
+import moa.streams.CachedInstancesStream;
+import moa.streams.InstanceStream;
 import weka.classifiers.Classifier;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
 /**
  *
  * @author Md Geaur Rahman
@@ -85,6 +129,26 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             "The number of batches training data that are saved in the window. default value is 3", 3, 1, Integer.MAX_VALUE);
         public IntOption conceptDriftOption = new IntOption("conceptDriftThreshold", 'D',
             "The concept drift threshold. default value is 3", 3, 1, Integer.MAX_VALUE);
+        public IntOption repairThreadsOption = new IntOption("repairThreads", 'P',
+            "The number of threads used to repair the trees of a forest. default value is 1 (sequential repair)", 1, 1, Integer.MAX_VALUE);
+        public IntOption buildThreadsOption = new IntOption("buildThreads", 'S',
+            "The number of threads used to build a forest (RF execution slots, HT trees trained in parallel). default value is 1, 0 uses all cores", 1, 0, Integer.MAX_VALUE);
+        public FlagOption concurrentUpdateOption = new FlagOption("concurrentUpdate", 'C',
+            "Maintain and evaluate PF, AF and TF concurrently on each batch.");
+        public FlagOption pipelineOption = new FlagOption("pipelineBatches", 'Q',
+            "Overlap reading, learning and scoring of consecutive batches in learnFromBatchDataset.");
+        public IntOption modelDumpIntervalOption = new IntOption("modelDumpInterval", 'O',
+            "Write the text dump of the best forest every N batches in learnFromBatchDataset. default value is 1 (every batch), 0 writes no dumps", 1, 0, Integer.MAX_VALUE);
+        public FlagOption spillWindowOption = new FlagOption("spillWindow", 'W',
+            "Keep the batches of the window, apart from the latest one, in binary temporary files instead of memory.");
+        public IntOption leafBatchesOption = new IntOption("leafBatches", 'K',
+            "The number of most recent batches whose records a leaf keeps for repairs. default value is 0 (all batches), the window size (e.g. 3) bounds long runs", 0, 0, Integer.MAX_VALUE);
+        public IntOption leafCapacityOption = new IntOption("leafCapacity", 'L',
+            "The maximum number of records a leaf keeps from each of the -K batches (in total when -K is 0), as a sample copied out of the batches. default value is 0 (references to all records), e.g. 1000 bounds the memory of large batches", 0, 0, Integer.MAX_VALUE);
+        public IntOption microBatchSizeOption = new IntOption("microBatchSize", 'N',
+            "The number of instances buffered into a batch before the forests are updated in streaming mode. default value is 1000", 1000, 1, Integer.MAX_VALUE);
+        public IntOption microBatchTimeOption = new IntOption("microBatchTime", 'T',
+            "The time (ms) after which a partial batch is handed over in streaming mode. default value is 0 (count only)", 0, 0, Integer.MAX_VALUE);
 
         protected BasicClassificationPerformanceEvaluator evaluator;
         private int minRecords;
@@ -94,6 +158,25 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         private int windowThreshold;
         private int ensembleSize;
         private int method;
+        private int repairThreads;
+        private int randomSeed;
+        private int buildThreads;
+        private boolean concurrentUpdate;
+        private boolean spillWindow;
+        private boolean pipelineBatches;
+        private int modelDumpInterval;
+        private int leafBatches;
+        private int leafCapacity;
+        private int microBatchSize;
+        private long microBatchTime;
+        private ADFLearner streamLearner;
+        private List<String[]> microBatch=new ArrayList<>();
+        private long microBatchStart;
+        private String streamName;
+        private String []streamAttrNames;
+        private int []streamAttrType;
+        private volatile VoteIndex voteIndex;
+        private final MetricsRegistry metrics=new MetricsRegistry();
         @Override
     
         public void resetLearningImpl() {
@@ -104,17 +187,198 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             this.repairableThreshold=(float)this.repairOption.getValue();
             this.windowThreshold=this.windowSizeOption.getValue();
             this.errorTolerance=(float)this.pertubedETOption.getValue();
+            this.repairThreads=this.repairThreadsOption.getValue();
+            this.randomSeed=this.randomSeedOption.getValue();
+            this.buildThreads=this.buildThreadsOption.getValue();
+            this.concurrentUpdate=this.concurrentUpdateOption.isSet();
+            this.spillWindow=this.spillWindowOption.isSet();
+            this.pipelineBatches=this.pipelineOption.isSet();
+            this.modelDumpInterval=this.modelDumpIntervalOption.getValue();
+            this.leafBatches=this.leafBatchesOption.getValue();
+            this.leafCapacity=this.leafCapacityOption.getValue();
+            this.microBatchSize=this.microBatchSizeOption.getValue();
+            this.microBatchTime=this.microBatchTimeOption.getValue();
+            switch(this.treeLearnerOption.getChosenIndex())
+            {
+                case 1: this.method=1; break;
+                case 2: this.method=3; break;
+                default: this.method=2;
+            }
+            if(this.streamLearner!=null)
+            {
+                this.streamLearner.shutdown();
+                this.streamLearner=null;
+            }
+            this.microBatch=new ArrayList<>();
+            this.voteIndex=null;
+            this.metrics.clear();
         }
 
+        /**
+         * Streaming mode: instances are buffered into a micro-batch, which is
+         * handed to the ADFLearner in memory once it holds microBatchSize
+         * instances or microBatchTime ms have passed since it was started.
+         */
         @Override
         public void trainOnInstanceImpl(Instance instance) {
-
+            if(this.streamLearner==null)
+            {
+                startStream(instance);
+            }
+            if(this.microBatch.isEmpty())
+            {
+                this.microBatchStart=System.currentTimeMillis();
+            }
+            this.microBatch.add(toRecord(instance));
+            if(this.microBatch.size()>=this.microBatchSize || (this.microBatchTime>0
+                    && System.currentTimeMillis()-this.microBatchStart>=this.microBatchTime))
+            {
+                flushMicroBatch();
+            }
+        }
+        
+        private void startStream(Instance instance)
+        {
+            int numAttr=instance.numAttributes();
+            this.streamName=instance.dataset().getRelationName();
+            this.streamAttrNames=new String[numAttr];
+            this.streamAttrType=new int[numAttr];
+            for(int i=0;i<numAttr;i++)
+            {
+                if(i==instance.classIndex())
+                     this.streamAttrType[i]=2;
+                else if(instance.attribute(i).isNumeric())
+                     this.streamAttrType[i]=1;
+                else 
+                     this.streamAttrType[i]=0;
+                this.streamAttrNames[i]=instance.attribute(i).name();
+            }
+            this.streamLearner=new ADFLearner(this.ensembleSize,this.minRecords,instance.classIndex(),this.method
+            ,this.cdfThreshold,this.repairableThreshold,this.errorTolerance,this.windowThreshold,this.repairThreads,this.concurrentUpdate,this.spillWindow);
+        }
+        
+        private void flushMicroBatch()
+        {
+            String [][]records=this.microBatch.toArray(new String[this.microBatch.size()][]);
+            this.microBatch=new ArrayList<>();
+            this.streamLearner.learnClassifiers(this.streamName,this.streamAttrNames,this.streamAttrType,records);
+        }
+        
+        private static String[] toRecord(Instance instance)
+        {
+            int numAttr=instance.numAttributes();
+            String []record=new String[numAttr];
+            for(int i=0;i<numAttr;i++)
+            {
+                if(instance.isMissing(i))
+                    record[i]="?";
+                else if(instance.attribute(i).isNumeric())
+                    record[i]=Double.toString(instance.value(i));
+                else
+                    record[i]=instance.attribute(i).value((int)instance.value(i));
+            }
+            return record;
         }
 
+        /**
+         * Votes of the current best forest, in the order of the class values
+         * of the instance header. Empty until the first micro-batch has been
+         * learned.
+         */
         @Override
         public double[] getVotesForInstance(Instance instance) {
-            DoubleVector combinedVote = new DoubleVector();
-            return combinedVote.getArrayRef();
+            Forest forest=this.streamLearner!=null?this.streamLearner.getClassifier():null;
+            if(forest==null || forest.getForestSize()==0)
+            {
+                DoubleVector combinedVote = new DoubleVector();
+                return combinedVote.getArrayRef();
+            }
+            AttributeDictionary dictionary=this.streamLearner.getDictionary();
+            int numAttr=instance.numAttributes();
+            double []row=new double[numAttr];
+            for(int i=0;i<numAttr;i++)
+            {
+                if(dictionary.isNumeric(i))
+                    row[i]=instance.isMissing(i)?Double.NaN:instance.value(i);
+                else if(instance.isMissing(i))
+                    row[i]=dictionary.getCode(i, "?");
+                else
+                    row[i]=dictionary.getCode(i, instance.attribute(i).value((int)instance.value(i)));
+            }
+            double []codeVotes=forest.forestVotes(row);
+            VoteIndex mapping=this.voteIndex;
+            if(mapping==null || mapping.header!=instance.dataset() || mapping.index.length!=codeVotes.length)
+            {
+                //class codes only grow, so the mapping is only extended; it
+                //is filled before it is published to other scoring threads
+                int ci=instance.classIndex();
+                int []index=new int[codeVotes.length];
+                for(int c=0;c<codeVotes.length;c++)
+                {
+                    index[c]=instance.classAttribute().indexOfValue(dictionary.getValue(ci, c));
+                }
+                mapping=new VoteIndex(instance.dataset(),index);
+                this.voteIndex=mapping;
+            }
+            int []index=mapping.index;
+            double []votes=new double[instance.numClasses()];
+            for(int c=0;c<codeVotes.length;c++)
+            {
+                if(index[c]>=0)votes[index[c]]+=codeVotes[c];
+            }
+            return votes;
+        }
+
+        /**
+         * Writes the streaming learner to a binary checkpoint. Instances of
+         * a micro-batch that has not been handed over yet are not included.
+         */
+        public void saveCheckpoint(String file) throws IOException
+        {
+            if(this.streamLearner==null)
+            {
+                throw new IllegalStateException("Nothing has been learned yet");
+            }
+            this.streamLearner.saveCheckpoint(new File(file));
+        }
+        
+        /**
+         * Restores the streaming learner from a checkpoint written by
+         * saveCheckpoint, replacing the current model. Options that are not
+         * stored in the checkpoint, such as the thread counts, are taken
+         * from the current settings.
+         */
+        public void loadCheckpoint(String file) throws IOException
+        {
+            ADFLearner learner=new ADFLearner(this.ensembleSize,this.minRecords,-1,this.method
+            ,this.cdfThreshold,this.repairableThreshold,this.errorTolerance,this.windowThreshold,this.repairThreads,this.concurrentUpdate,this.spillWindow);
+            try{
+                learner.loadCheckpoint(new File(file));
+            }
+            catch(IOException e)
+            {
+                learner.shutdown();
+                throw e;
+            }
+            if(this.streamLearner!=null)
+            {
+                this.streamLearner.shutdown();
+            }
+            DatasetStats stats=learner.getDatasetStats();
+            if(stats.getBatch()==null)
+            {
+                learner.shutdown();
+                this.streamLearner=null;
+            }
+            else
+            {
+                this.streamLearner=learner;
+                this.streamName=stats.getDataSetName();
+                this.streamAttrNames=stats.getAttrNames();
+                this.streamAttrType=stats.getAttrType();
+            }
+            this.microBatch=new ArrayList<>();
+            this.voteIndex=null;
         }
 
         @Override
@@ -128,7 +392,38 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
 
         @Override
         protected Measurement[] getModelMeasurementsImpl() {
-            return null;
+            Map<String,Double> values=this.metrics.snapshot();
+            Measurement []measurements=new Measurement[values.size()];
+            int i=0;
+            for(Map.Entry<String,Double> e:values.entrySet())
+            {
+                measurements[i++]=new Measurement(e.getKey(),e.getValue());
+            }
+            return measurements;
+        }
+        
+        /**
+         * Metrics of the last batch learned (phase times, perturbed leaves
+         * and repaired trees, forest sizes and leaf buffer heap, the drift
+         * counter and scoring throughput), by name in a fixed order. The map is a copy, so it
+         * can be read while the next batch is learned.
+         */
+        public Map<String,Double> getMetrics()
+        {
+            return this.metrics.snapshot();
+        }
+        
+        /**
+         * Text dump of PF, AF and TF in streaming mode, or an empty string
+         * if nothing has been learned yet. Used by the tests to compare the
+         * models learned in different modes.
+         */
+        String describeForests()
+        {
+            ADFLearner learner=this.streamLearner;
+            if(learner==null)
+                return "";
+            return "PF:\n"+learner.PF+"\nAF:\n"+learner.AF+"\nTF:\n"+learner.TF;
         }
 
         @Override
@@ -146,52 +441,419 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
        if(padding.equals("")) padding=getMethodName();
        File logFile=new File(batchFiles);
        String [][]bFile=ForestFunctions.readFileAs2DArray(logFile);
-       String header="Batch, Accuracy, Time (ms)";       
+       String header="Batch, Accuracy, Time (ms), Wall time (ms)";       
        String accuracyFile=ForestFunctions.changedFileName(ForestFunctions.changedFileExtension(logFile.getAbsolutePath(),"csv"),"_accuracy"+padding);       
        File outF=new File(accuracyFile);
-       ForestFunctions.writeToFile(outF, md+"\n"+header);
        String path=logFile.getParent();       
        int noB=bFile.length;
-       String batchStatus="";
        ADFLearner adfl=new ADFLearner(this.ensembleSize,this.minRecords,classIndex,this.method
-       ,this.cdfThreshold,this.repairableThreshold,this.errorTolerance,this.windowThreshold);                
-       for(int i=0;i<noB;i++)
-            {
-                String trainFile=path+"\\"+bFile[i][0];
-                String learnerFile=ForestFunctions.changedFileExtension(ForestFunctions.changedFileName(trainFile,"_finalclassifier"),"txt");
-                String testFile=path+"\\"+bFile[i][1];
-                System.out.println("\n\nProcessing file: "+trainFile);
-                long time=0;
-                double accuracy=0.0;
-                long sTime=0, eTime=0;
-                sTime = System.currentTimeMillis();                
-                adfl.learnClassifiers(trainFile);
-//                adfl.displayAllForests();
-                Forest forest= adfl.getClassifier();  
-                String f=forest.toString(); 
-                ForestFunctions.writeToFile(new File(learnerFile), f);    
-                eTime = System.currentTimeMillis();
-                time =eTime-sTime;
-                if(f.equals(""))
+       ,this.cdfThreshold,this.repairableThreshold,this.errorTolerance,this.windowThreshold,this.repairThreads,this.concurrentUpdate,this.spillWindow);                
+       PersistenceWriter writer=new PersistenceWriter(outF, md+"\n"+header);
+       try{
+           if(this.pipelineBatches)
+           {
+               learnBatchesPipelined(path,bFile,classIndex,adfl,writer);
+               return;
+           }
+           for(int i=0;i<noB;i++)
                 {
-                     System.out.println("No forest is built");
+                    String trainFile=new File(path,bFile[i][0]).getPath();
+                    System.out.println("\n\nProcessing file: "+trainFile);
+                    adfl.learnClassifiers(trainFile);
+//                    adfl.displayAllForests();
+                    Forest forest= adfl.getClassifier();  
+                    reportBatch(path,bFile[i],i,classIndex,forest,adfl.getTotalTime(),adfl.getMaxExeTime(),adfl.getWorkerPool(),writer);
                 }
-                else{
-
-                    accuracy=forest.forestAccuracy(testFile,classIndex);
-                }                
-                long []trainTime=adfl.getExeTime();
-                float []trainAccuracy=adfl.getAccuracy();
-                time=adfl.getTotalTime();
-                batchStatus=", "+trainAccuracy[1]+","+trainTime[1];
-                
-                NumberFormat formatter = new DecimalFormat("#0.000");  
-                String acc="\n"+bFile[i][0]+", "+formatter.format(accuracy)+"%,"+time;
-                String acc1="\n"+bFile[i][0]+",Accuracy= "+formatter.format(accuracy)+"%, Time (ms)= "+time;
-                System.out.println(acc1);
-                ForestFunctions.appendToFile(outF, acc);
-            }
+       }
+       finally{
+           adfl.shutdown();
+           writer.close();
+       }
     }   
+    /**
+     * Scores the forest learned from a batch on the test file of the batch.
+     * The dump of the forest next to the training file (every
+     * modelDumpInterval batches) and the accuracy row are handed to the
+     * persistence writer. The row has the time spent on the forests, summed
+     * over PF, AF and TF, and the wall-clock time of the update, in every
+     * mode.
+     */
+    private void reportBatch(String path,String []batch,int index,int classIndex,Forest forest,long time,long wallTime,ForkJoinPool pool,PersistenceWriter writer)
+    {
+        String trainFile=new File(path,batch[0]).getPath();
+        String testFile=new File(path,batch[1]).getPath();
+        double accuracy=0.0;
+        if(this.modelDumpInterval>0 && (index+1)%this.modelDumpInterval==0)
+        {
+            String learnerFile=ForestFunctions.changedFileExtension(ForestFunctions.changedFileName(trainFile,"_finalclassifier"),"txt");
+            writer.writeModel(forest, new File(learnerFile));
+        }
+        if(forest.getForestSize()==0)
+        {
+             System.out.println("No forest is built");
+        }
+        else{
+            accuracy=forest.forestAccuracy(testFile,classIndex,pool);
+        }                
+        NumberFormat formatter = new DecimalFormat("#0.000");  
+        String acc="\n"+batch[0]+", "+formatter.format(accuracy)+"%,"+time+","+wallTime;
+        String acc1="\n"+batch[0]+",Accuracy= "+formatter.format(accuracy)+"%, Time (ms)= "+time+", Wall time (ms)= "+wallTime;
+        System.out.println(acc1);
+        writer.appendRow(acc);
+    }
+    /**
+     * Pipelined form of the batch loop. A reader thread parses the training
+     * file of the next batch while the current batch is learned, and a
+     * scorer thread writes and scores the published snapshot of a learned
+     * forest while the next batch is repaired. The queues between the stages
+     * hold one batch each, so memory stays bounded and a slow stage holds
+     * the others back. Batches are learned and reported in log order, so
+     * the results are the same as for the sequential loop.
+     */
+    private void learnBatchesPipelined(String path,String [][]bFile,int classIndex,ADFLearner adfl,PersistenceWriter writer)
+    {
+        BlockingQueue<PipelineBatch> parsed=new ArrayBlockingQueue<>(1);
+        BlockingQueue<PipelineBatch> learned=new ArrayBlockingQueue<>(1);
+        ExecutorService stages=Executors.newFixedThreadPool(2, r -> {
+            Thread thread=new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try{
+            Future<?> reader=stages.submit(() -> {
+                try{
+                    for(int i=0;i<bFile.length;i++)
+                    {
+                        parsed.put(new PipelineBatch(i,readBatch(new File(path,bFile[i][0]).getPath(),classIndex)));
+                    }
+                }
+                finally{
+                    parsed.put(PipelineBatch.END);
+                }
+                return null;
+            });
+            Future<?> scorer=stages.submit(() -> {
+                for(PipelineBatch b=learned.take();b!=PipelineBatch.END;b=learned.take())
+                {
+                    reportBatch(path,bFile[b.index],b.index,classIndex,b.forest,b.time,b.wallTime,adfl.getWorkerPool(),writer);
+                }
+                return null;
+            });
+            for(PipelineBatch b=parsed.take();b!=PipelineBatch.END;b=parsed.take())
+            {
+                System.out.println("\n\nProcessing file: "+new File(path,bFile[b.index][0]).getPath());
+                adfl.learnClassifiers(b.data);
+                b.data=null;
+                b.forest=adfl.getClassifier();
+                b.time=adfl.getTotalTime();
+                b.wallTime=adfl.getMaxExeTime();
+                handOver(learned,b,scorer);
+            }
+            handOver(learned,PipelineBatch.END,scorer);
+            scorer.get();
+            reader.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch(ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause());
+        }
+        finally{
+            stages.shutdownNow();
+        }
+    }
+    /**
+     * Puts a batch on the queue of the next stage, giving up with the
+     * failure of that stage if it has stopped taking batches.
+     */
+    private static void handOver(BlockingQueue<PipelineBatch> queue,PipelineBatch b,Future<?> consumer)
+            throws InterruptedException, ExecutionException
+    {
+        while(!queue.offer(b, 100, TimeUnit.MILLISECONDS))
+        {
+            if(consumer.isDone())
+            {
+                consumer.get();
+                throw new IllegalStateException("Pipeline stage stopped early");
+            }
+        }
+    }
+    /**
+     * Parses an ARFF file into memory, so that learning from it does no
+     * text parsing.
+     */
+    private static InstanceStream readBatch(String file,int classIndex)
+    {
+        ArffFileStream stream=new ArffFileStream(file,classIndex);
+        Instances data=new Instances(stream.getHeader(),0);
+        while(stream.hasMoreInstances())
+        {
+            data.add(stream.nextInstance().getData());
+        }
+        return new CachedInstancesStream(data);
+    }
+    /**
+     * Writes the classifier dumps and the accuracy rows of
+     * learnFromBatchDataset on a thread of its own, so that learning and
+     * scoring never wait for the disk. Requests are queued in order in a
+     * bounded queue; a caller only waits when the queue is full, which
+     * bounds the number of forests held for dumping. The accuracy file is
+     * kept open for the whole run. If a request fails with anything other
+     * than an IO error the writer stops, and the next submit or close
+     * throws that failure instead of waiting on a queue nobody takes from.
+     */
+    private static class PersistenceWriter{
+        private static final int QUEUE_CAPACITY=4;
+        private static final Runnable STOP=() -> {};
+        private final BlockingQueue<Runnable> queue=new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Thread thread;
+        private BufferedWriter accuracyOut;
+        private volatile Throwable failure;
+        PersistenceWriter(File accuracyFile,String header)
+        {
+            try{
+                accuracyOut=Files.newBufferedWriter(accuracyFile.toPath());
+                accuracyOut.write(header);
+                accuracyOut.flush();
+            }
+            catch(IOException e)
+            {
+                System.out.println("Error: IO Exception occured " + e);
+                accuracyOut=null;
+            }
+            thread=new Thread(this::drain,"adf-persistence");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        private void drain()
+        {
+            try{
+                for(Runnable task=queue.take();task!=STOP;task=queue.take())
+                {
+                    task.run();
+                }
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch(Throwable e)
+            {
+                failure=e;
+            }
+        }
+        /**
+         * Throws the failure that stopped the writer thread, if any.
+         */
+        private void checkFailure()
+        {
+            Throwable e=failure;
+            if(e==null)return;
+            if(e instanceof Error)throw (Error)e;
+            throw new RuntimeException("Persistence writer failed", e);
+        }
+        /**
+         * Queues task, giving up with the failure of the writer thread if it
+         * has stopped taking requests.
+         */
+        private void submit(Runnable task)
+        {
+            checkFailure();
+            try{
+                while(!queue.offer(task, 100, TimeUnit.MILLISECONDS))
+                {
+                    checkFailure();
+                    if(!thread.isAlive())
+                        throw new IllegalStateException("Persistence writer stopped early");
+                }
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        /**
+         * Queues a text dump of forest. The forest must not change any
+         * more, e.g. a snapshot published by the learner.
+         */
+        public void writeModel(Forest forest,File file)
+        {
+            submit(() -> {
+                try(Writer out=Files.newBufferedWriter(file.toPath()))
+                {
+                    forest.writeModel(out);
+                }
+                catch(IOException e)
+                {
+                    System.out.println("Error: IO Exception occured " + e);
+                }
+            });
+        }
+        public void appendRow(String row)
+        {
+            submit(() -> {
+                if(accuracyOut==null)return;
+                try{
+                    accuracyOut.write(row);
+                    accuracyOut.flush();
+                }
+                catch(IOException e)
+                {
+                    System.out.println("Error: IO Exception occured " + e);
+                }
+            });
+        }
+        /**
+         * Waits until everything queued has been written and closes the
+         * accuracy file. Throws the failure of the writer thread, if any.
+         */
+        public void close()
+        {
+            try{
+                if(failure==null)
+                {
+                    submit(STOP);
+                    thread.join();
+                }
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            finally{
+                try{
+                    if(accuracyOut!=null)accuracyOut.close();
+                }
+                catch(IOException e)
+                {
+                    System.out.println("Error: IO Exception occured " + e);
+                }
+            }
+            checkFailure();
+        }
+    }
+    /**
+     * Position in the class values of header of every class code of the
+     * learner, or -1 for a class the header does not have.
+     */
+    private static final class VoteIndex{
+        final Instances header;
+        final int []index;
+        VoteIndex(Instances header,int []index)
+        {
+            this.header=header;
+            this.index=index;
+        }
+    }
+    /**
+     * Per batch instrumentation of the learner, read through
+     * getModelMeasurementsImpl and getMetrics. Phase times are in ms and
+     * summed over the forests the phase ran on; with concurrent updates
+     * they may overlap. Values are kept in the order they were first set.
+     */
+    private static class MetricsRegistry{
+        static final String BATCHES="batches learned";
+        static final String INGESTION_TIME="ingestion time (ms)";
+        static final String PERTURBATION_TIME="perturbation detection time (ms)";
+        static final String ISAT_TIME="ISAT expansion time (ms)";
+        static final String TF_BUILD_TIME="TF build time (ms)";
+        static final String SCORING_TIME="scoring time (ms)";
+        static final String RECORDS_ROUTED="records routed";
+        static final String ROUTING_RATE="records routed per second";
+        static final String CDF="concept drift counter";
+        static final String PERTURBED_LEAVES=" perturbed leaves";
+        static final String TREES_REPAIRED=" trees repaired";
+        static final String NODES=" nodes";
+        static final String DEPTH=" depth";
+        static final String LEAF_BUFFER_BYTES=" leaf buffer bytes";
+        private static final String []FORESTS={"PF","AF","TF"};
+        private final Map<String,Double> values=new LinkedHashMap<>();
+        
+        public synchronized void clear()
+        {
+            values.clear();
+        }
+        public synchronized void set(String name,double value)
+        {
+            values.put(name, value);
+        }
+        public synchronized void add(String name,double value)
+        {
+            values.merge(name, value, Double::sum);
+        }
+        public void setTime(String name,long startNanos)
+        {
+            set(name, (System.nanoTime()-startNanos)/1e6);
+        }
+        public void addTime(String name,long startNanos)
+        {
+            add(name, (System.nanoTime()-startNanos)/1e6);
+        }
+        /**
+         * Zeroes the per batch values, so that a phase that does not run on
+         * a batch does not report the value of an earlier one.
+         */
+        public synchronized void startBatch()
+        {
+            values.putIfAbsent(BATCHES, 0.0);
+            for(String name:new String[]{INGESTION_TIME,PERTURBATION_TIME,ISAT_TIME,TF_BUILD_TIME,SCORING_TIME,RECORDS_ROUTED,ROUTING_RATE})
+            {
+                values.put(name, 0.0);
+            }
+            for(String f:FORESTS)
+            {
+                values.put(f+PERTURBED_LEAVES, 0.0);
+                values.put(f+TREES_REPAIRED, 0.0);
+            }
+        }
+        public synchronized void endBatch(int cdf,Forest... forests)
+        {
+            values.merge(BATCHES, 1.0, Double::sum);
+            double scoring=values.getOrDefault(SCORING_TIME, 0.0);
+            values.put(ROUTING_RATE, scoring>0?values.getOrDefault(RECORDS_ROUTED, 0.0)*1000.0/scoring:0.0);
+            values.put(CDF, (double)cdf);
+            for(int i=0;i<forests.length;i++)
+            {
+                int nodes=0, depth=0;
+                for(Tree tree:forests[i].getForest())
+                {
+                    nodes+=tree.getTotalNodeCount();
+                    depth=Math.max(depth, tree.getTreeDepth());
+                }
+                values.put(FORESTS[i]+NODES, (double)nodes);
+                values.put(FORESTS[i]+DEPTH, (double)depth);
+                values.put(FORESTS[i]+LEAF_BUFFER_BYTES, (double)forests[i].getLeafBufferBytes());
+            }
+        }
+        public synchronized Map<String,Double> snapshot()
+        {
+            return new LinkedHashMap<>(values);
+        }
+    }
+    /**
+     * A batch moving through the pipeline of learnBatchesPipelined: parsed
+     * instances on the way to the learner, then the learned forest on the
+     * way to the scorer.
+     */
+    private static class PipelineBatch{
+        static final PipelineBatch END=new PipelineBatch(-1,null);
+        final int index;
+        InstanceStream data;
+        Forest forest;
+        long time;
+        long wallTime;
+        PipelineBatch(int index,InstanceStream data)
+        {
+            this.index=index;
+            this.data=data;
+        }
+    }
     
     public String modelDescription()
     {
@@ -229,6 +891,15 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
       this.windowThreshold=this.windowSizeOption.getValue();
       this.minRecords=this.minRecordsOption.getValue();
       this.ensembleSize=this.ensembleSizeOption.getValue();
+      this.repairThreads=this.repairThreadsOption.getValue();
+      this.randomSeed=this.randomSeedOption.getValue();
+      this.buildThreads=this.buildThreadsOption.getValue();
+      this.concurrentUpdate=this.concurrentUpdateOption.isSet();
+      this.spillWindow=this.spillWindowOption.isSet();
+      this.pipelineBatches=this.pipelineOption.isSet();
+      this.modelDumpInterval=this.modelDumpIntervalOption.getValue();
+      this.leafBatches=this.leafBatchesOption.getValue();
+      this.leafCapacity=this.leafCapacityOption.getValue();
       this.method=2;
       //reset the parameters with current settings
       for(int i=0;i<options.length;i++)  
@@ -247,6 +918,24 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             {i++;this.ensembleSize=Integer.parseInt(options[i]);}
           if(options[i].equals("-m"))
             {i++;this.minRecords=Integer.parseInt(options[i]);}
+          if(options[i].equals("-P"))
+            {i++;this.repairThreads=Integer.parseInt(options[i]);}
+          if(options[i].equals("-r"))
+            {i++;this.randomSeed=Integer.parseInt(options[i]);}
+          if(options[i].equals("-S"))
+            {i++;this.buildThreads=Integer.parseInt(options[i]);}
+          if(options[i].equals("-C"))
+            {this.concurrentUpdate=true;}
+          if(options[i].equals("-W"))
+            {this.spillWindow=true;}
+          if(options[i].equals("-Q"))
+            {this.pipelineBatches=true;}
+          if(options[i].equals("-O"))
+            {i++;this.modelDumpInterval=Integer.parseInt(options[i]);}
+          if(options[i].equals("-K"))
+            {i++;this.leafBatches=Integer.parseInt(options[i]);}
+          if(options[i].equals("-L"))
+            {i++;this.leafCapacity=Integer.parseInt(options[i]);}
           if(options[i].equals("-F"))
             {i++;
             if(options[i].equals("SysFor"))
@@ -276,19 +965,29 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         private int classIndex;
         private int method;        
         private String dataFile;
-        private String windowFile;
         private DatasetStats dss;
         private ArffFileStream ARFFdataFile;
         private Forest PF=new Forest();
         private Forest AF=new Forest();
         private Forest TF=new Forest();
         private Forest bestF=new Forest();
+        private volatile Forest published=new Forest();
         private float []accuracy=new float[4];
         private long []exeTime=new long[4];        
         private String status;
         private boolean isBuiltTF=false;
+        private ForkJoinPool repairPool;
+        private boolean concurrentUpdate;
+        private ExecutorService forestPool;
+        private BatchWindow window;
         ADFLearner(int numTree, int minLeafSize,int classIndex,int method
         ,int cdfThreshold,float repairableThreshold,float errorTolerance,int windowThreshold)
+        {
+            this(numTree,minLeafSize,classIndex,method,cdfThreshold,repairableThreshold,errorTolerance,windowThreshold,1,false,false);
+        }
+        ADFLearner(int numTree, int minLeafSize,int classIndex,int method
+        ,int cdfThreshold,float repairableThreshold,float errorTolerance,int windowThreshold,int repairThreads
+        ,boolean concurrentUpdate,boolean spillWindow)
         {
             this.numTree=numTree;
             this.minLeafSize=minLeafSize;
@@ -299,18 +998,51 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             this.errorTolerance=errorTolerance;       
             this.windowThreshold=windowThreshold;
             this.cdf=0;
-            windowFile="";
+            window=new BatchWindow(windowThreshold,spillWindow);
             status="";
             dss=new DatasetStats();
+            if(repairThreads>1)
+            {
+                repairPool=new ForkJoinPool(repairThreads);
+            }
+            this.concurrentUpdate=concurrentUpdate;
+            if(concurrentUpdate)
+            {
+                forestPool=Executors.newFixedThreadPool(2, r -> {
+                    Thread thread=new Thread(r);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        public void shutdown()
+        {
+            if(repairPool!=null)
+            {
+                repairPool.shutdown();
+            }
+            if(forestPool!=null)
+            {
+                forestPool.shutdown();
+            }
         }
         public long[]getExeTime()
         {
             return this.exeTime;
         }
+        /**
+         * Wall-clock time of the last forest update, from the end of the
+         * batch ingestion to the choice of the best forest. exeTime[1..3]
+         * keep the time spent on PF, AF and TF respectively.
+         */
         public long getMaxExeTime()
         {
             return this.exeTime[0];
         }
+        public boolean isConcurrentUpdate()
+        {
+            return this.concurrentUpdate;
+        }
         public long getTotalTime()
         {
             long t=0;
@@ -331,45 +1063,227 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         {
             return status;
         }
-        public void learnClassifiers(String dataFile)
+        public AttributeDictionary getDictionary()
         {
-            long sTime=0, eTime=0;
-            status="";
-            for(int i=0;i<4;i++)
+            return dss.getDictionary();
+        }
+        /**
+         * The pool the trees are repaired on, which is also used to score
+         * record blocks; null when repairThreads is 1.
+         */
+        public ForkJoinPool getWorkerPool()
+        {
+            return repairPool;
+        }
+        public DatasetStats getDatasetStats()
+        {
+            return dss;
+        }
+        /**
+         * Writes PF, AF and TF with their leaf statistics and record buffers,
+         * the window, the statistics of the last batch and the drift counters
+         * to a binary checkpoint. The thread pools are not part of it.
+         */
+        public void saveCheckpoint(File file) throws IOException
+        {
+            CheckpointWriter w=new CheckpointWriter();
+            DataOutputStream out=w.out();
+            out.writeInt(numTree);
+            out.writeInt(minLeafSize);
+            out.writeInt(classIndex);
+            out.writeInt(method);
+            out.writeInt(cdfThreshold);
+            out.writeFloat(repairableThreshold);
+            out.writeFloat(errorTolerance);
+            out.writeInt(windowThreshold);
+            out.writeInt(cdf);
+            out.writeBoolean(isPF_Update);
+            out.writeBoolean(isBuiltTF);
+            for(int i=0;i<accuracy.length;i++)
             {
-                exeTime[i]=-1;
-                accuracy[i]=0;
+                out.writeFloat(accuracy[i]);
             }
-            this.dataFile=dataFile;
-            ARFFdataFile=new ArffFileStream(this.dataFile,this.classIndex);             
-            dss.processARFFDataFile(ARFFdataFile);
-            String [][]bData=dss.getData();
-            int cIndex=dss.getClassIndex();
-            if(PF.getForestSize()==0)
-            {   status+="(PFNE-BPF-CAF)-";
-                updateWindow(true);
-                sTime = System.currentTimeMillis();             
-                PF.buildForest(ARFFdataFile, dss, numTree, minLeafSize, method);
-                PF.setClassValues(dss.getClassValues());
-                eTime = System.currentTimeMillis();
-                exeTime[1]=eTime-sTime;
-                sTime = System.currentTimeMillis();
-                AF.constructRuleToForest(PF.toString(), dss);
+            AttributeDictionary dictionary=dss.getDictionary();
+            out.writeBoolean(dss.getBatch()!=null);
+            if(dss.getBatch()!=null)
+            {
+                w.writeString(dss.getDataSetName());
+                w.writeStrings(dss.getAttrNames());
+                w.writeInts(dss.getAttrType());
+                out.writeInt(dss.getClassIndex());
+                out.writeInt(w.batchId(dss.getBatch()));
+            }
+            List<ColumnarBatch> windowBatches=dictionary==null?new ArrayList<>():window.getBatches(dictionary);
+            out.writeInt(windowBatches.size());
+            for(ColumnarBatch batch:windowBatches)
+            {
+                out.writeInt(w.batchId(batch));
+            }
+            PF.write(w);
+            AF.write(w);
+            TF.write(w);
+            out.writeInt(bestF==PF?1:bestF==AF?2:bestF==TF?3:0);
+            w.save(file, dictionary);
+        }
+        /**
+         * Replaces the state of the learner by a checkpoint written by
+         * saveCheckpoint, so that learning resumes with the next batch.
+         */
+        public void loadCheckpoint(File file) throws IOException
+        {
+            CheckpointReader r=CheckpointReader.open(file);
+            DataInputStream in=r.in();
+            numTree=in.readInt();
+            minLeafSize=in.readInt();
+            classIndex=in.readInt();
+            method=in.readInt();
+            cdfThreshold=in.readInt();
+            repairableThreshold=in.readFloat();
+            errorTolerance=in.readFloat();
+            windowThreshold=in.readInt();
+            cdf=in.readInt();
+            isPF_Update=in.readBoolean();
+            isBuiltTF=in.readBoolean();
+            for(int i=0;i<accuracy.length;i++)
+            {
+                accuracy[i]=in.readFloat();
+            }
+            dss=new DatasetStats();
+            if(in.readBoolean())
+            {
+                String dsName=r.readString();
+                String []attrNames=r.readStrings();
+                int []attrType=r.readInts();
+                int ci=in.readInt();
+                dss=new DatasetStats(null,dsName,attrNames,attrType,r.batch(in.readInt()),ci);
+            }
+            boolean spill=window.isSpill();
+            window.clear();
+            window=new BatchWindow(windowThreshold,spill);
+            int nw=in.readInt();
+            for(int i=0;i<nw;i++)
+            {
+                window.add(r.batch(in.readInt()));
+            }
+            PF=new Forest();
+            PF.read(r);
+            AF=new Forest();
+            AF.read(r);
+            TF=new Forest();
+            TF.read(r);
+            int best=in.readInt();
+            bestF=best==1?PF:best==2?AF:best==3?TF:new Forest();
+            published=bestF.snapshot();
+            resetBatchStatus();
+        }
+        public void learnClassifiers(String dataFile)
+        {
+            resetBatchStatus();
+            this.dataFile=dataFile;
+            long sTime=System.nanoTime();
+            ARFFdataFile=new ArffFileStream(this.dataFile,this.classIndex);             
+            dss.processARFFDataFile(ARFFdataFile);
+            metrics.setTime(MetricsRegistry.INGESTION_TIME, sTime);
+            learnBatch();
+        }
+        /**
+         * Learns from a batch of parsed instances, e.g. held in memory by
+         * the producer. The stream is read once, from where it stands.
+         */
+        public void learnClassifiers(InstanceStream batch)
+        {
+            resetBatchStatus();
+            this.dataFile=null;
+            ARFFdataFile=null;
+            long sTime=System.nanoTime();
+            dss.calculateDatasetStats(batch);
+            metrics.setTime(MetricsRegistry.INGESTION_TIME, sTime);
+            learnBatch();
+        }
+        /**
+         * Learns from a batch held in memory, e.g. a micro-batch collected in
+         * streaming mode. The window is then kept in memory as well.
+         */
+        public void learnClassifiers(String dsName,String []attrNames,int []attrType,String [][]records)
+        {
+            resetBatchStatus();
+            this.dataFile=null;
+            ARFFdataFile=null;
+            long sTime=System.nanoTime();
+            AttributeDictionary dictionary=dss.getDictionary();
+            if(dictionary==null)
+            {
+                dictionary=new AttributeDictionary(attrType);
+            }
+            dss=new DatasetStats(null,dsName,attrNames,attrType,dictionary,records,this.classIndex);
+            metrics.setTime(MetricsRegistry.INGESTION_TIME, sTime);
+            learnBatch();
+        }
+        private void resetBatchStatus()
+        {
+            metrics.startBatch();
+            status="";
+            for(int i=0;i<4;i++)
+            {
+                exeTime[i]=-1;
+                accuracy[i]=0;
+            }
+        }
+        private void learnBatch()
+        {
+            long sTime=0, eTime=0;
+            long wallStart=0;
+            ColumnarBatch bData=dss.getBatch();
+            int cIndex=dss.getClassIndex();
+            wallStart=System.currentTimeMillis();
+            if(PF.getForestSize()==0)
+            {   status+="(PFNE-BPF-CAF)-";
+                updateWindow(true);
+                sTime = System.currentTimeMillis();             
+                PF.buildForest(dss, numTree, minLeafSize, method);
+                PF.setClassValues(dss.getClassValues());
+                eTime = System.currentTimeMillis();
+                exeTime[1]=eTime-sTime;
+                sTime = System.currentTimeMillis();
+                AF.copyForest(PF, dss);
                 AF.setClassValues(dss.getClassValues());
                 eTime = System.currentTimeMillis();
                 exeTime[2]=eTime-sTime;
             }
             else{ 
                 updateWindow(false);
+                if(concurrentUpdate)
+                {
+                    updateForestsConcurrently(bData,cIndex);
+                    exeTime[0]=System.currentTimeMillis()-wallStart;
+                    return;
+                }
                 if(isPF_Update)
                 {
+                    StringBuilder pfLog=new StringBuilder();
                     sTime = System.currentTimeMillis();
-                    boolean ret=repairForest(PF,"PF");
+                    boolean ret=repairForest(PF,"PF",dss,pfLog);
                     eTime = System.currentTimeMillis();
                     exeTime[1]=eTime-sTime;
+                    status+=pfLog;
                 }
+                StringBuilder log=new StringBuilder();
+                updateAFAndTF(log);
+                status+=log;
+            }            
+            findBestClassifier(bData,cIndex);
+            exeTime[0]=System.currentTimeMillis()-wallStart;
+        }
+        /**
+         * Repairs AF and then builds or repairs TF, depending on whether AF
+         * could be repaired. May replace the batch statistics by the window
+         * statistics when a TF is built.
+         */
+        private void updateAFAndTF(StringBuilder log)
+        {
+                long sTime=0, eTime=0;
                 sTime = System.currentTimeMillis();
-                boolean isAFRepairable=repairForest(AF,"AF");
+                boolean isAFRepairable=repairForest(AF,"AF",dss,log);
                 eTime = System.currentTimeMillis();
                 exeTime[2]=eTime-sTime;
                 if(isAFRepairable)
@@ -382,64 +1296,151 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                     isBuiltTF=true;
                     this.cdf++;
                     if(TF.getForestSize()==0)
-                    {   status+="(TFNE-TFW)-";
-                        createWindowFile();                        
+                    {   log.append("(TFNE-TFW)-");
+                        createWindowStats();                        
                         TF=new Forest();
                         sTime = System.currentTimeMillis();     
-                        TF.buildForest(ARFFdataFile, dss, numTree, minLeafSize, method);
+                        TF.buildForest(dss, numTree, minLeafSize, method);
                         TF.setClassValues(dss.getClassValues());
                         eTime = System.currentTimeMillis();
                         exeTime[3]=eTime-sTime;
+                        metrics.set(MetricsRegistry.TF_BUILD_TIME, exeTime[3]);
                     }
                     else{  
                         sTime = System.currentTimeMillis();                        
-                        boolean isTFRepairable=repairForest(TF,"TF");
+                        boolean isTFRepairable=repairForest(TF,"TF",dss,log);
                         eTime = System.currentTimeMillis();
                         exeTime[3]=eTime-sTime;
                         if(isTFRepairable==false)
                         {
-                            status+="(BTFW)-";
-                            createWindowFile();
+                            log.append("(BTFW)-");
+                            createWindowStats();
                             TF=new Forest();
                             sTime = System.currentTimeMillis();             
-                            TF.buildForest(ARFFdataFile, dss, numTree, minLeafSize, method);
+                            TF.buildForest(dss, numTree, minLeafSize, method);
                             TF.setClassValues(dss.getClassValues());
                             eTime = System.currentTimeMillis();
                             exeTime[3]=eTime-sTime;
+                            metrics.set(MetricsRegistry.TF_BUILD_TIME, exeTime[3]);
                             if(this.cdf>this.cdfThreshold)
                             {
                                 this.cdf=0; 
                                 AF=new Forest();
-                                AF.constructRuleToForest(TF.toString(), dss);
+                                AF.copyForest(TF, dss);
                                 AF.setClassValues(dss.getClassValues());
                                 TF=new Forest();
-                                status+="(CDF-AF=TF)-";
+                                log.append("(CDF-AF=TF)-");
                             }
                         }
                     }                    
                 }
-            }            
-            findBestClassifier(bData,cIndex);
+        }
+        /**
+         * Concurrent batch update. Only TF depends on the outcome of the AF
+         * repair, so PF is repaired and scored on a pool thread while AF and
+         * TF are maintained on the calling thread; the AF and TF accuracies
+         * are then evaluated in parallel. PF works on the batch statistics
+         * captured up front, because building a TF replaces dss by the
+         * window statistics. All tasks are joined before the best forest is
+         * chosen, so the outcome is the same as for the sequential update.
+         * The two sides never touch the same forest and write only their own
+         * slots of accuracy and exeTime. What they share has to stay safe for
+         * concurrent use: the batch statistics and their ColumnarBatch are
+         * only read, apart from the WEKA instances getWekaInstances creates
+         * on first use under its lock; the AttributeDictionary gets the values
+         * of new subtrees through the synchronized intern; both repairs submit
+         * their trees to repairPool; and the metrics methods are synchronized.
+         */
+        private void updateForestsConcurrently(ColumnarBatch bData,int cIndex)
+        {
+            final DatasetStats batchStats=dss;
+            final StringBuilder pfLog=new StringBuilder();
+            Future<?> pfTask=forestPool.submit(() -> {
+                if(isPF_Update)
+                {
+                    long sTime = System.currentTimeMillis();
+                    repairForest(PF,"PF",batchStats,pfLog);
+                    exeTime[1]=System.currentTimeMillis()-sTime;
+                }
+                if(PF.getForestSize()>0)
+                {
+                    accuracy[1]=scoreForest(PF,bData,cIndex);
+                }
+            });
+            StringBuilder log=new StringBuilder();
+            updateAFAndTF(log);
+            final Forest af=AF;
+            Future<?> afTask=forestPool.submit(() -> {
+                if(af.getForestSize()>0)
+                {
+                    accuracy[2]=scoreForest(af,bData,cIndex);
+                }
+            });
+            if(TF.getForestSize()>0)
+            {
+                accuracy[3]=scoreForest(TF,bData,cIndex);
+            }
+            awaitTask(pfTask);
+            awaitTask(afTask);
+            status+=pfLog.toString()+log.toString();
+            selectBestClassifier();
+        }
+        private void awaitTask(Future<?> task)
+        {
+            try{
+                task.get();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            catch(ExecutionException e)
+            {
+                throw new RuntimeException(e.getCause());
+            }
         }
         public boolean repairForest(Forest F,String msg)
+        {
+            StringBuilder log=new StringBuilder();
+            boolean isRepairable=repairForest(F,msg,dss,log);
+            status+=log;
+            return isRepairable;
+        }
+        public boolean repairForest(Forest F,String msg,DatasetStats d,StringBuilder log)
         {
             boolean isRepairable=true;
-            F.setClassValues(dss.getClassValues());
+            F.setClassValues(d.getClassValues());
             int totalTree=F.getForestSize();
             int[]treePerturbed=new int[totalTree];
-            isRepairable=isForestRepairable(F,treePerturbed,msg);
-            String []tClassValues=ClassObserver.updateClassValues(F.getClassValues(), dss.getClassValues());  
-            int ncv=ClassObserver.getNumNewCV();
+            long sTime=System.nanoTime();
+            isRepairable=isForestRepairable(F,d,treePerturbed,msg);
+            metrics.addTime(MetricsRegistry.PERTURBATION_TIME, sTime);
+            String []fClassValues=F.getClassValues();
+            String []tClassValues=ClassObserver.updateClassValues(fClassValues, d.getClassValues());  
+            int ncv=tClassValues.length-fClassValues.length;
             if(isRepairable ||(msg.equals("PF")&&isPF_Update) || ncv>0){
-                ISAT isat=new ISAT();
-                isat.expandForestByISAT(F, dss, this.dataFile, minLeafSize, method,
-                        this.classIndex,ARFFdataFile,treePerturbed,ncv);                            
+                ISAT isat=new ISAT(repairPool);
+                sTime=System.nanoTime();
+                isat.expandForestByISAT(F, d, this.dataFile, minLeafSize, method,
+                        this.classIndex,treePerturbed,ncv);                            
+                metrics.addTime(MetricsRegistry.ISAT_TIME, sTime);
+                int repaired=0;
+                for(int i=0;i<totalTree;i++)
+                {
+                    if(treePerturbed[i]>0 || ncv>0)repaired++;
+                }
+                metrics.set(msg+MetricsRegistry.TREES_REPAIRED, repaired);
                 isRepairable=true;
-                status+="("+msg+"-isat)-";
+                log.append("("+msg+"-isat)-");
             }
             return isRepairable;
         }
         public boolean isForestRepairable(Forest F, int[]treePerturbed,String msg)
+        {
+            return isForestRepairable(F,dss,treePerturbed,msg);
+        }
+        public boolean isForestRepairable(Forest F, DatasetStats d, int[]treePerturbed,String msg)
         {
             boolean isRepairable=true;
             int totalTree=F.getForestSize();
@@ -451,7 +1452,7 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             for(int i=0;i<totalTree;i++)
             {
                 Tree T=Trees.get(i);
-                treePerturbed[i]=T.identifyPerturbedLeaves(dss, (double)errorTolerance);
+                treePerturbed[i]=T.identifyPerturbedLeaves(d, (double)errorTolerance);
                 totalPerturbed+=treePerturbed[i];
                 leaves[i]=T.getTotalLeafCount();
                 totalLeaves+=leaves[i];      
@@ -462,6 +1463,7 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             {
                 perturbedRatio=(float)totalPerturbed/(float)totalLeaves;
             }
+            metrics.set(msg+MetricsRegistry.PERTURBED_LEAVES, totalPerturbed);
 //            System.out.println(msg+": Total perturbed leaves: "+totalPerturbed+",  total leaves: "+totalLeaves+
 //                    ", perturbed ratio: "+perturbedRatio+" and max tree size: "+maxTreeSize);
             if(perturbedRatio>repairableThreshold)
@@ -470,9 +1472,13 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             }
             return isRepairable;
         }
-        public void findBestClassifier(String [][]bData,int cIndex)
+        public void findBestClassifier(ColumnarBatch bData,int cIndex)
         {
             calculateAccuracy(bData,cIndex);
+            selectBestClassifier();
+        }
+        private void selectBestClassifier()
+        {
             float maxAcc=0.0f;
             int maxIndex=1;
             for(int i=1;i<accuracy.length;i++)
@@ -496,83 +1502,60 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             {
                bestF=TF;status+="(TF)";
             }
+            published=bestF.snapshot();
+            metrics.endBatch(cdf,PF,AF,TF);
         }
         private void updateWindow(boolean isFirstBatch)
         {
-            if(this.windowFile.equals("")||isFirstBatch)
+            if(isFirstBatch)
             {
-                windowFile=ForestFunctions.changetoNewFileName(dataFile,"\\"+dss.getDataSetName()+"_window.txt");
-                ForestFunctions.writeToFile(new File(this.windowFile), this.dataFile+"\n");
+                window.clear();
             }
-            else
-            {
-                String []w=ForestFunctions.readFileAsArray(new File(this.windowFile));
-                if(w.length<windowThreshold)
-                {
-                    ForestFunctions.appendToFile(new File(this.windowFile), this.dataFile+"\n");
-                }
-                else
-                {
-                    String rec="";
-                    for(int i=1;i<w.length;i++)
-                    {
-                        rec=rec+w[i]+"\n";
-                    }
-                    rec=rec+dataFile+"\n";
-                    ForestFunctions.writeToFile(new File(this.windowFile), rec);
-                }
-            }       
+            window.add(dss.getBatch());
         }
         
-        private void createWindowFile()
+        /**
+         * Replaces the batch statistics by the statistics of all the batches
+         * in the window, for building a TF.
+         */
+        private void createWindowStats()
         {   
-            List<String[]> recordList = new ArrayList<String[]>();            
-            String []wFile=ForestFunctions.readFileAsArray(new File(windowFile));
-            for(int i=0;i<wFile.length;i++)
-            {
-               String []tmpdata =ForestFunctions.readFileAsArray(new File(wFile[i]));
-               for(int j=0;j<tmpdata.length;j++)
-               {
-                if(tmpdata[j].equals("@data"))  
-                {
-                    for(j=j+1;j<tmpdata.length;j++)
-                     {
-                        if(!tmpdata[j].equals(""))  
-                        {
-                           String []rec=tmpdata[j].split(", |,| ");
-                           recordList.add(rec);
-                        }
-                     }
-                }
-               }
-            }
-            String tmpArffFile=ForestFunctions.changedFileName(dataFile, "-tmpWin");
-            ForestFunctions.createArffFile(dss.getDataSetName(),dss.getAttrNames(),dss.getAttrType(),
-                    recordList.toArray(new String[][] {}),tmpArffFile);                    
-            ARFFdataFile=new ArffFileStream(tmpArffFile,classIndex);                                      
-            dss=new DatasetStats(ARFFdataFile,dss.getDataSetName(),dss.getAttrNames(),dss.getAttrType(),
-                    recordList.toArray(new String[][] {}),dss.getClassIndex());       
-            ForestFunctions.removeFile(tmpArffFile);
-        }
+            dss=new DatasetStats(null,dss.getDataSetName(),dss.getAttrNames(),dss.getAttrType(),
+                    window.toBatch(dss.getDictionary()),dss.getClassIndex());       
+        }
+        /**
+         * The best forest of the last batch, as an immutable snapshot. PF, AF
+         * and TF are repaired in place, so a new snapshot is published
+         * atomically once the next batch has been learned; readers never
+         * block and never see a half repaired forest.
+         */
         public Forest getClassifier()
         {
-            return bestF;
+            return published;
         }
-        public void calculateAccuracy(String [][]records,int cIndex)
+        public void calculateAccuracy(ColumnarBatch records,int cIndex)
         {            
             if(PF.getForestSize()>0)
             {
-                accuracy[1]=PF.forestAccuracy(records,cIndex);
+                accuracy[1]=scoreForest(PF,records,cIndex);
             }
             if(AF.getForestSize()>0)
             {
-                accuracy[2]=AF.forestAccuracy(records,cIndex);
+                accuracy[2]=scoreForest(AF,records,cIndex);
             }
             if(TF.getForestSize()>0)
             {
-                accuracy[3]=TF.forestAccuracy(records,cIndex);
+                accuracy[3]=scoreForest(TF,records,cIndex);
             }            
         }
+        private float scoreForest(Forest F,ColumnarBatch records,int cIndex)
+        {
+            long sTime=System.nanoTime();
+            float acc=F.forestAccuracy(records,cIndex,repairPool);
+            metrics.addTime(MetricsRegistry.SCORING_TIME, sTime);
+            metrics.add(MetricsRegistry.RECORDS_ROUTED, (double)records.getNumRows()*F.getForestSize());
+            return acc;
+        }
         public void displayAllForests()
         {
             System.out.println("\nPF\n"+PF.toString());
@@ -584,45 +1567,90 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
     private class ISAT{
        private int []attrType;
        private String[]attrNames;
+       private AttributeDictionary dictionary;
        private String dataFile;
        private String dsName;
        private int minLeafSize;
        private int method;
        private int cIndex;
-       private ArffFileStream ARFFdataFile;
+       private ForkJoinPool repairPool;
        private static final int MAX_DEPTH=20;
        
+       ISAT()
+       {
+           this(null);
+       }
+       /**
+        * @param repairPool pool used to repair the trees of a forest in
+        * parallel, one task per tree, or null to repair them one by one
+        */
+       ISAT(ForkJoinPool repairPool)
+       {
+           this.repairPool=repairPool;
+       }
        public void expandForestByISAT(Forest F, DatasetStats d, String dataFile,int minLeafSize,
-               int method, int cIndex,ArffFileStream ARFFdataFile,int[]treePerturbed, int newCV)
+               int method, int cIndex,int[]treePerturbed, int newCV)
        {
            this.dataFile=dataFile;
            this.attrType=d.getAttrType();
            this.attrNames=d.getAttrNames();
+           this.dictionary=d.getDictionary();
            this.dsName=d.getDataSetName();
            this.minLeafSize=minLeafSize;
            this.method=method;
            this.cIndex=cIndex;
-           this.ARFFdataFile=ARFFdataFile;
 
            String mCV=ClassObserver.findMajorityClassValue(d.getClassValues(), d.getClassDistribution());           
-           int i=0;
-           for(Tree t:F.getForest()){
-               if(treePerturbed[i]>0 ||newCV>0)
+           List<Tree> trees=F.getForest();
+           int numTree=trees.size();
+           if(repairPool==null || numTree<2)
+           {
+               for(int i=0;i<numTree;i++)
+               {
+                   repairTree(trees.get(i),d,mCV,treePerturbed[i]>0 ||newCV>0);
+               }
+           }
+           else
+           {
+               //trees share no mutable state, so each one is repaired by its own task
+               List<ForkJoinTask<?>> tasks=new ArrayList<>(numTree);
+               for(int i=0;i<numTree;i++)
                {
-                   expandTreeByISAT(t,d,mCV,t.getRoot().isLeaf());
+                   final Tree t=trees.get(i);
+                   final boolean isPerturbed=treePerturbed[i]>0 ||newCV>0;
+                   tasks.add(repairPool.submit(() -> repairTree(t,d,mCV,isPerturbed)));
                }
-               t.updateLeafStats(d, false);
-               if(treePerturbed[i]>0 ||newCV>0)
+               for(ForkJoinTask<?> task:tasks)
                {
-                   expandTreeByEntropy(t,d);
+                   task.join();
                }
+           }
+       }
+       private void repairTree(Tree t, DatasetStats d, String mCV, boolean isPerturbed)
+       {
+           boolean changed=false;
+           if(isPerturbed)
+           {
+               changed=expandTreeByISAT(t,d,mCV,t.getRoot().isLeaf());
+           }
+           t.updateLeafStats(d, false);
+           if(isPerturbed)
+           {
+               changed|=expandTreeByEntropy(t,d);
+           }
+           //node indexes and the compiled tree only go stale when the structure changed
+           if(changed)
+           {
                t.updateTreeDepth();
-               t.updateTreeMinMax(d.getMin(),d.getMax());
-               i++;
            }
+           t.updateTreeMinMax(d.getMin(),d.getMax());
        }
-       public void expandTreeByISAT(Tree T, DatasetStats d, String mCV, boolean isLeaf)
+       /**
+        * @return true if a new root was added to T
+        */
+       public boolean expandTreeByISAT(Tree T, DatasetStats d, String mCV, boolean isLeaf)
        {            
+            boolean changed=false;
             double []treeMin=T.getTreeMin();
             double []treeMax=T.getTreeMax();
             double []rangeMin1=d.getMin();
@@ -646,9 +1674,10 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                     if(cv.length>1 && d.getNumRecords()>this.minLeafSize)
                     {
                         Tree t=new Tree();
-                        newChild=t.constructSubTree(this.ARFFdataFile,this.attrNames,this.attrType,this.minLeafSize,this.method);
+                        newChild=t.constructSubTree(d.getWekaInstances(), attrNames, attrType, dictionary, minLeafSize, method);
                     }
                     T.addRootAndChild(newChild,attrNames[index1], attrType[index1], splitVal+"", mCV, false);
+                    changed=true;
                 }
                 //no intersection, create root node and left child
                 else if(max2>0 && max2>max1)
@@ -660,9 +1689,10 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                     if(cv.length>1 && d.getNumRecords()>this.minLeafSize)
                     {
                         Tree t=new Tree();
-                        newChild=t.constructSubTree(this.ARFFdataFile,this.attrNames,this.attrType,this.minLeafSize,this.method);
+                        newChild=t.constructSubTree(d.getWekaInstances(), attrNames, attrType, dictionary, minLeafSize, method);
                     }
                     T.addRootAndChild(newChild,attrNames[index2], attrType[index2], splitVal+"", mCV, true);
+                    changed=true;
                 }
             }
             else //intersection (left or right or both), iSAT implementation
@@ -675,61 +1705,65 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                 index2=ForestFunctions.findMaxIndex(dist2,attrType);                                
                 if(max2>0) //intersection left side, create root node and left child
                 {
-                    String [][]batchData=d.getData();
+                    ColumnarBatch batchData=d.getBatch();
                     double splitVal=treeMin[index2];
-                    String [][] satData=partitionData(batchData,splitVal,index2,"L");
-                    if(satData.length>0)
+                    ColumnarBatch satData=partitionData(batchData,splitVal,index2,"L");
+                    if(satData.getNumRows()>0)
                     {
                         Node newChild=null;
-                        String []cv=ForestFunctions.findDomainValues(satData, d.getClassIndex());
-                        if(cv.length>1)
+                        if(satData.countDistinct(d.getClassIndex())>1)
                         {
                             Tree t=new Tree();
-                            newChild=t.constructSubTree(dsName, attrNames, attrType, minLeafSize, method, dataFile, satData, cIndex);
+                            newChild=t.constructSubTree(dsName, attrNames, attrType, dictionary, minLeafSize, method, satData);
                         }
                         T.addRootAndChild(newChild,attrNames[index2], attrType[index2], splitVal+"", mCV, true);                        
+                        changed=true;
                     }
                 } 
                 
                 if(max1>0) //right side intersection, create root node and right child
                 {
-                    String [][]batchData=d.getData();
+                    ColumnarBatch batchData=d.getBatch();
                     double splitVal=treeMax[index1];
-                    String [][]satData=partitionData(batchData,splitVal,index1,"R");
-                    if(satData.length>this.minLeafSize)
+                    ColumnarBatch satData=partitionData(batchData,splitVal,index1,"R");
+                    if(satData.getNumRows()>this.minLeafSize)
                     {
                         Node newChild=null;
-                        String []cv=ForestFunctions.findDomainValues(satData, d.getClassIndex());
-                        if(cv.length>1)
+                        if(satData.countDistinct(d.getClassIndex())>1)
                         {
                             Tree t=new Tree();
-                            newChild=t.constructSubTree(dsName, attrNames, attrType, minLeafSize, method, dataFile, satData, cIndex);
+                            newChild=t.constructSubTree(dsName, attrNames, attrType, dictionary, minLeafSize, method, satData);
                         }
                         T.addRootAndChild(newChild,attrNames[index1], attrType[index1], splitVal+"", mCV, false);                        
+                        changed=true;
                     }
                 }                                               
             }
+            return changed;
        }
-       public void expandTreeByEntropy(Tree T, DatasetStats d)
+       /**
+        * @return true if a leaf of T was replaced by a subtree
+        */
+       public boolean expandTreeByEntropy(Tree T, DatasetStats d)
        {
+           boolean changed=false;
            List<Node> treeLeaves=T.getLeaves();
            for(Node node:treeLeaves)
            {
                if(node.isLeaf() && !node.isPure() && node.isPerturbed() && node.getTreeDepth()<MAX_DEPTH)
                {
-                   List<String[]> data=node.getLeafData();
-                   String [][]leafData=data.toArray(new String[][] {});
-                   if(leafData.length>this.minLeafSize)
+                   if(node.getNumRecords()>this.minLeafSize)
                    {
+                   ColumnarBatch leafData=node.getLeafData();
+                   int []leafGens=node.getLeafGenerations();
                    Node newChild=null;
-                    String []cv=ForestFunctions.findDomainValues(leafData, d.getClassIndex());
-                    if(cv.length>1)
+                    if(leafData.countDistinct(d.getClassIndex())>1)
                     {
                         Tree t=new Tree();
-                        newChild=t.constructSubTree(dsName, attrNames, attrType, minLeafSize, method, dataFile, leafData, cIndex);
+                        newChild=t.constructSubTree(dsName, attrNames, attrType, dictionary, minLeafSize, method, leafData);
                         if(newChild!=null && !newChild.isLeaf() && newChild.getNumberOfChildren()>1)
                         {
-                           t.updateSubTreeStats(leafData,node.getLeafClassValues(),d.getClassIndex()); 
+                           t.updateSubTreeStats(leafData,leafGens,node.getLeafClassValues(),d.getClassIndex()); 
                            //set child to parent link
                            if(node.getParent()!=null)
                            {
@@ -755,6 +1789,7 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                            if(oldIndex>=0)
                            {
                                parent.replaceChild(newChild, oldIndex);
+                               changed=true;
                            }
                            }
                            }
@@ -763,17 +1798,19 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                }
                }
            }
+           return changed;
        }
-       private String [][]partitionData(String [][]data, double splitVal, int index, String leftOrRight)
+       private ColumnarBatch partitionData(ColumnarBatch data, double splitVal, int index, String leftOrRight)
         {    
-            String [][]pData=null;
-            int records=data.length;
-            ArrayList<Integer>tmpList = new ArrayList<Integer>();
+            int records=data.getNumRows();
+            boolean isLeft=leftOrRight.equals("L");
+            int []rows=new int[records];
+            int nRecs=0;
             for(int r=0;r<records;r++)
             {
-                double val=Double.parseDouble(data[r][index]);
+                double val=data.getNumeric(index, r);
                 boolean flag=false;
-                if(leftOrRight.equals("L"))
+                if(isLeft)
                 {
                     if(val<=splitVal) flag=true;
                 }
@@ -782,26 +1819,27 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                 }
                 if(flag)
                 {
-                    tmpList.add(r);
+                    rows[nRecs++]=r;
                 }    
             }
-            int nRecs=tmpList.size();
-            int noa=attrType.length;        
-            pData=new String[nRecs][noa];
-            for(int r=0;r<nRecs;r++)
-            {           
-                System.arraycopy(data[tmpList.get(r)], 0, pData[r], 0, noa);
-            }
-            return pData;
+            return data.select(rows, nRecs);
         }
     }
     
+    /**
+     * The read APIs of a forest (forestVotes, forestAccuracy, predictBatch,
+     * writeModel and toString) keep no per call state in the forest or its
+     * trees, so they can be called from any number of threads at once. They
+     * must not run while the forest is being built, repaired or retrained.
+     */
     private class Forest{
+        private static final int SCORING_CHUNK=1024;
         private int numTree;
         private int minLeafSize;
         private int classIndex;
         private List<Tree> trees;
         private List <String>classValues;
+        private AttributeDictionary dictionary;
         Forest()
         {
             trees=new ArrayList<Tree>();
@@ -822,15 +1860,28 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         {
             return this.classValues.toArray(new String[this.classValues.size()]);
         }
-        public void buildForest(ArffFileStream ARFFdataFile,DatasetStats dss,int numTree, int minLeafSize,int method)
+        /**
+         * Builds the forest from the records held in memory by dss, without
+         * writing them to a temporary ARFF file first.
+         */
+        public void buildForest(DatasetStats dss,int numTree, int minLeafSize,int method)
+        {
+            weka.core.Instances data=dss.getWekaInstances();
+            ForestModel model=ForestFunctions.buildClassifier(method, data, numTree, minLeafSize, randomSeed, buildThreads);
+            buildForest(model, dss, numTree, minLeafSize);
+        }
+        private void buildForest(ForestModel model,DatasetStats dss,int numTree, int minLeafSize)
         {
             this.numTree=numTree;            
             this.minLeafSize=minLeafSize;
             this.classIndex=dss.getClassIndex();
+            this.dictionary=dss.getDictionary();
             setClassValues(dss.getClassValues());
-            String treeStr=ForestFunctions.buildClassifier(method, ARFFdataFile, numTree, minLeafSize);
-            if(method==2)treeStr=ForestFunctions.preprocessTree(treeStr);
-            if(treeStr.equals(""))
+            if(model.isConverted())
+            {
+                constructNodesToForest(model.getRoots(),dss);
+            }
+            else if(model.getTreeString().equals(""))
             {
                 String majorityCV=ClassObserver.findMajorityClassValue(dss.getClassValues(), dss.getClassDistribution());                
                 for(int i=1;i<=numTree;i++) 
@@ -844,12 +1895,62 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                 }
             } 
             else{
-            constructRuleToForest(treeStr,dss);   
+            constructRuleToForest(model.getTreeString(),dss);   
+            }
+        }
+        private void constructNodesToForest(List<Node> roots,DatasetStats dss)
+        {
+            numTree=roots.size();
+            for(Node root:roots)
+            {
+                Tree tree=new Tree();
+                tree.buildInitialTree(root, dss);
+                tree.updateLeafStats(dss, true);
+                trees.add(tree);
+            }
+        }
+        /**
+         * Makes this forest a copy of the trees of source trained on dss. It
+         * gives the same forest as constructRuleToForest(source.toString(),dss)
+         * but copies the node structure directly instead of printing and
+         * re-parsing it.
+         */
+        public void copyForest(Forest source,DatasetStats dss)
+        {
+            this.classIndex=dss.getClassIndex();
+            this.dictionary=dss.getDictionary();
+            List<Node> roots=new ArrayList<>(source.getForestSize());
+            for(Tree tree:source.getForest())
+            {
+                roots.add(tree.getRoot().copySubTree(null));
+            }
+            constructNodesToForest(roots,dss);
+        }
+        /**
+         * Read only copy of the forest for publishing. Trees, leaf
+         * predictions and class distributions are copied but the leaf
+         * records are not, and nothing changes the copy afterwards, so it
+         * can be scored while this forest is being repaired.
+         */
+        public Forest snapshot()
+        {
+            Forest copy=new Forest();
+            copy.numTree=numTree;
+            copy.minLeafSize=minLeafSize;
+            copy.classIndex=classIndex;
+            copy.dictionary=dictionary;
+            copy.setClassValues(getClassValues());
+            for(Tree tree:trees)
+            {
+                copy.trees.add(tree.snapshot(classIndex));
             }
+            return copy;
         }
         public void constructRuleToForest(String treeStr,DatasetStats dss)
         {
 //           System.out.println("\n"+treeStr+"\n");
+           this.classIndex=dss.getClassIndex();
+           this.dictionary=dss.getDictionary();
            String []rules=treeStr.split("\n");//ff.readFileAsArray(new File(treeFile));
            if(rules.length>0)           
            {
@@ -891,88 +1992,226 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         {
             return this.trees.size();
         }
-        public String forestPrediction(String []record)
-        {                        
-            String []CVs=this.classValues.toArray(new String[this.classValues.size()]);
-            int ncv=CVs.length;
-            int []vote=new int [ncv];
+        public void write(CheckpointWriter w) throws IOException
+        {
+            DataOutputStream out=w.out();
+            out.writeInt(numTree);
+            out.writeInt(minLeafSize);
+            out.writeInt(classIndex);
+            w.writeStrings(getClassValues());
+            out.writeInt(trees.size());
             for(Tree tree:trees)
             {
-               String pv =tree.getClassValueForInstance(record);
-               for(int i=0;i<ncv;i++)
-               {
-                   if(CVs[i].equals(pv))
-                   {
-                        vote[i]++;break;
-                   }
-               }
+                tree.write(w);
             }
-            int majorityIndex=0;
-            for(int i=1;i<ncv;i++)
-            {
-                if(vote[i]>vote[majorityIndex])
-                {
-                    majorityIndex=i;
-                }
-            }            
-            return CVs[majorityIndex];
         }
-        public boolean isCorrectyClassified(Instance inst, int ci)
+        public void read(CheckpointReader r) throws IOException
         {
-            String s=inst.toString();
-            String []record=s.split(",");
-            String pcv=forestPrediction(record);
-            return record[ci].equals(pcv);
+            DataInputStream in=r.in();
+            numTree=in.readInt();
+            minLeafSize=in.readInt();
+            classIndex=in.readInt();
+            setClassValues(r.readStrings());
+            dictionary=r.getDictionary();
+            int nt=in.readInt();
+            for(int t=0;t<nt;t++)
+            {
+                Tree tree=new Tree();
+                tree.read(r,dictionary);
+                trees.add(tree);
+            }
         }
-        public boolean isCorrectyClassified(String []record, int ci)
+        public long getLeafBufferBytes()
+        {
+            long bytes=0;
+            Set<ColumnarBatch> counted=Collections.newSetFromMap(new IdentityHashMap<ColumnarBatch,Boolean>());
+            for(Tree tree:trees)
+            {
+                bytes+=tree.getLeafBufferBytes(counted);
+            }
+            return bytes;
+        }
+        /**
+         * Probability-weighted votes for an encoded record. Each tree adds the
+         * class distribution of the leaf reached, normalised to one, or a
+         * single vote for the leaf prediction if the leaf has no
+         * distribution yet. Votes are indexed by the class codes of the
+         * dictionary. A published snapshot has these votes precomputed for
+         * every leaf, so scoring it does no string lookups.
+         */
+        public double[] forestVotes(double []row)
         {
-            String pcv=forestPrediction(record);
-            return record[ci].equals(pcv);
+            double []votes=new double[dictionary.getDomainSize(classIndex)];
+            for(Tree tree:trees)
+            {
+               CompiledTree compiled=tree.getCompiledTree();
+               int slot=compiled.route(row);
+               if(slot<0)continue;
+               if(compiled.hasLeafVotes())
+               {
+                   compiled.addLeafVotes(slot, votes);
+               }
+               else
+               {
+                   CompiledTree.addVotes(compiled.getNode(slot), dictionary, classIndex, votes);
+               }
+            }
+            return votes;
         }
         public float forestAccuracy(String testDataFile, int ci)
         {
-            float accuracy=0.0f;
+            return forestAccuracy(testDataFile,ci,null);
+        }
+        public float forestAccuracy(String testDataFile, int ci, ForkJoinPool pool)
+        {
             ArffFileStream testData=new ArffFileStream(testDataFile,ci);
             int cIndex=testData.getHeader().classIndex();
-            int numberSamplesCorrect = 0;
-            int numberSamples = 0;
+            BatchBuilder builder=new BatchBuilder(dictionary,cIndex,false);
             while(testData.hasMoreInstances())
             {
-               Instance inst=testData.nextInstance().getData();
-               numberSamples++;
-               if(isCorrectyClassified(inst,cIndex))numberSamplesCorrect++;                   
+               builder.add(testData.nextInstance().getData());
             }
-            if(numberSamples>0)
-                accuracy = 100.0f * (float) numberSamplesCorrect/ (float) numberSamples;
-           return accuracy;
+            return forestAccuracy(builder.build(),cIndex,pool);
         }
-        public float forestAccuracy(String [][]records,int cIndex)
+        public float forestAccuracy(ColumnarBatch records,int cIndex)
+        {
+            return forestAccuracy(records,cIndex,null);
+        }
+        public float forestAccuracy(ColumnarBatch records,int cIndex, ForkJoinPool pool)
         {
             float accuracy=0.0f;
             int numberSamplesCorrect = 0;
-            int numberSamples = records.length;
+            int numberSamples = records.getNumRows();
+            int []classIds=predictBatch(records,new int[numberSamples],pool);
+            int []actual=records.getNominalColumn(cIndex);
             for(int i=0;i<numberSamples;i++){
-               if(isCorrectyClassified(records[i],cIndex))numberSamplesCorrect++;                   
+               if(actual[i]>=0 && classIds[i]==actual[i])numberSamplesCorrect++;                   
             }
             if(numberSamples>0)
                 accuracy = 100.0f * (float) numberSamplesCorrect/ (float) numberSamples;
            return accuracy;
         }
+        /**
+         * Predicts the class of every record of a block into classIds, as
+         * class codes of the dictionary. The block is scored tree by tree, so
+         * that one tree's arrays stay in cache while the records stream past,
+         * with one vote buffer per chunk of records. Chunks are scored in
+         * parallel on pool, or one after the other if pool is null. A tree
+         * that has no branch for a record abstains; a record no tree votes
+         * for gets the first class value.
+         */
+        public int[] predictBatch(ColumnarBatch block, int []classIds, ForkJoinPool pool)
+        {
+            int numRows=block.getNumRows();
+            String []CVs=this.classValues.toArray(new String[this.classValues.size()]);
+            int ncv=CVs.length;
+            if(ncv==0)
+            {
+                Arrays.fill(classIds, 0, numRows, -1);
+                return classIds;
+            }
+            int []cvCodes=new int[ncv];
+            Map<String,Integer> cvIndex=new HashMap<>();
+            for(int i=ncv-1;i>=0;i--)
+            {
+                cvCodes[i]=dictionary.getCode(classIndex, CVs[i]);
+                cvIndex.put(CVs[i], i);
+            }
+            //for every tree, the class value index predicted at each leaf slot
+            int numTrees=trees.size();
+            CompiledTree []compiled=new CompiledTree[numTrees];
+            int [][]slotClass=new int[numTrees][];
+            Node [][]routed=new Node[numTrees][];
+            for(int t=0;t<numTrees;t++)
+            {
+                compiled[t]=trees.get(t).getCompiledTree();
+                slotClass[t]=compiled[t].mapLeaves(cvIndex);
+                routed[t]=trees.get(t).getRoutedLeaves(block);
+            }
+            if(pool==null || numRows<=SCORING_CHUNK)
+            {
+                scoreChunk(block,0,numRows,compiled,slotClass,routed,cvCodes,classIds);
+            }
+            else
+            {
+                List<ForkJoinTask<?>> tasks=new ArrayList<>();
+                for(int start=0;start<numRows;start+=SCORING_CHUNK)
+                {
+                    final int from=start;
+                    final int to=Math.min(numRows, start+SCORING_CHUNK);
+                    tasks.add(pool.submit(() -> scoreChunk(block,from,to,compiled,slotClass,routed,cvCodes,classIds)));
+                }
+                for(ForkJoinTask<?> task:tasks)
+                {
+                    task.join();
+                }
+            }
+            return classIds;
+        }
+        private void scoreChunk(ColumnarBatch block,int from,int to,CompiledTree []compiled,int [][]slotClass,
+                Node [][]routed,int []cvCodes,int []classIds)
+        {
+            int ncv=cvCodes.length;
+            int []votes=new int[(to-from)*ncv];
+            for(int t=0;t<compiled.length;t++)
+            {
+                CompiledTree tree=compiled[t];
+                int []leafClass=slotClass[t];
+                Node []leaves=routed[t];
+                for(int r=from;r<to;r++)
+                {
+                    int slot=leaves!=null?(leaves[r]!=null?leaves[r].getSlot():-1):tree.route(block,r);
+                    if(slot>=0 && leafClass[slot]>=0)
+                    {
+                        votes[(r-from)*ncv+leafClass[slot]]++;
+                    }
+                }
+            }
+            for(int r=from;r<to;r++)
+            {
+                int base=(r-from)*ncv;
+                int majorityIndex=0;
+                for(int i=1;i<ncv;i++)
+                {
+                    if(votes[base+i]>votes[base+majorityIndex])
+                    {
+                        majorityIndex=i;
+                    }
+                }
+                classIds[r]=cvCodes[majorityIndex];
+            }
+        }
         
-        @Override
-        public String toString()
+        /**
+         * Writes the forest in the text form constructRuleToForest parses,
+         * one node at a time, so that a large forest is never held as a
+         * single string.
+         */
+        public void writeModel(Writer out) throws IOException
         {
-            String out="";
             int t=0;
             for(Tree tree:trees)
             {
                 t++;
-                out+="\nTree: "+t+", Total nodes:"+tree.getTotalNodeCount()
+                out.write("\nTree: "+t+", Total nodes:"+tree.getTotalNodeCount()
                         +", Total leaves:"+tree.getTotalLeafCount()
-                        +", Tree depth:"+tree.getTreeDepth()+"\n";
-                out+=tree.toString()+"\n";                
+                        +", Tree depth:"+tree.getTreeDepth()+"\n");
+                tree.describeSubTree(tree.getRoot(), out, 0);
+                out.write("\n");
             }
-            return out;
+        }
+        @Override
+        public String toString()
+        {
+            StringWriter out=new StringWriter();
+            try{
+                writeModel(out);
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+            return out.toString();
         }
         
     }
@@ -984,14 +2223,19 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         private int []classDist;
         private int totalNodeCount;
         private int totalLeafCount;
-        private boolean leafFoundFlag=false;
-        private Node findLeaf;
         private int []atype;
         private String []aNames;
         private double []treeMax;
         private double []treeMin;
         private int treeDepth;
         private List<Node> leafCollection = new ArrayList<>();
+        private AttributeDictionary dictionary;
+        private CompiledTree compiledTree;
+        private ColumnarBatch routedBatch;
+        private Node routedRoot;
+        private CompiledTree routedTree;
+        private Node []routedLeaves;
+        private int generation;
         public Tree()
         {
             root=new Node(null,0,false,0);
@@ -1017,8 +2261,29 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             treeMin=dss.getMin();
             classValues=dss.getClassValues();
             classDist=dss.getClassDistribution();
+            dictionary=dss.getDictionary();
             constructTree(conditions,aNames,atype);            
         }
+        public void buildInitialTree(Node root, DatasetStats dss)
+        {
+            atype=dss.getAttrType();
+            aNames=dss.getAttrNames();
+            treeMax=dss.getMax();
+            treeMin=dss.getMin();
+            classValues=dss.getClassValues();
+            classDist=dss.getClassDistribution();
+            dictionary=dss.getDictionary();
+            constructTree(root);
+        }
+        /**
+         * Takes over a node structure built by ModelConverter; node indexes,
+         * depths and the leaf collection are worked out from it.
+         */
+        public void constructTree(Node root)
+        {
+            this.root=root;
+            updateTreeDepth();
+        }
         public void constructTree(String []conditions)//tree with just a single leaf
         {
                 String majorityCV="";
@@ -1042,6 +2307,7 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
              totalLeafCount++;totalNodeCount++;             
              root.setLeafPrediction(majorityCV.trim());
              leafCollection.add(root);
+             compileTree();
         }
         public void constructTree(String []conditions,String []attrNames,int []attrType)
         {
@@ -1107,8 +2373,7 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                      int depth=currentNode.getTreeDepth();
                      if(depth<tl-1)
                      {
-                         treeDepth=depth+1;
-                        Node child=new Node(currentNode,treeDepth,false,++nodeIndex); 
+                        Node child=new Node(currentNode,depth+1,false,++nodeIndex); 
                         int tmp=tl-1;
                         child.setNodeInfo(ForestFunctions.findAttrType(lAttr.get(tmp),attrNames,attrType), lAttr.get(tmp));                    
                         child.setSplitInfo(sOp.get(tmp-1), sVal.get(tmp-1));
@@ -1121,8 +2386,9 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                      tl=lAttr.size();
                      if(tl>0)
                      {
-                         treeDepth=currentNode.getTreeDepth()+1;
-                         Node child=new Node(currentNode,treeDepth,true,++nodeIndex);                         
+                         int depth=currentNode.getTreeDepth()+1;
+                         if(depth>treeDepth)treeDepth=depth;
+                         Node child=new Node(currentNode,depth,true,++nodeIndex);                         
                          totalLeafCount++;
                          tl--;
                          child.setSplitInfo(sOp.get(tl), sVal.get(tl));
@@ -1136,17 +2402,32 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                  }                  
             }
             totalNodeCount=nodeIndex+1;
+            compileTree();
             }
         }
         
         
+        /**
+         * Starts the records of a new batch: ages the records of every leaf,
+         * including the leaves the batch does not reach, and returns the
+         * generation the new records are tagged with.
+         */
+        private int nextGeneration()
+        {
+            generation++;
+            for(Node leaf:leafCollection)
+            {
+                leaf.ageRecords(generation, leafBatches);
+            }
+            return generation;
+        }
         public void updateLeafStats(DatasetStats dss, boolean isFirstBatch)
         { 
             int n=dss.getNumRecords();
             
             if(n>0)
             {
-                int ncv=0,tcv=0;
+                int tcv=0;
                 
                 if(!isFirstBatch)
                 {
@@ -1154,78 +2435,86 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                     String []tmpClassValues=dss.getClassValues();
                     int []tmpClassDist=dss.getClassDistribution();
                     classValues=ClassObserver.updateClassValues(classValues, tmpClassValues);  
-                    ncv=ClassObserver.getNumNewCV();
                     classDist=ClassObserver.updateClassDistribution(classValues,tmpoldCV,classDist.clone(), tmpClassValues, tmpClassDist);
                 }
                 tcv=classValues.length;
                 int [][]leafCVDist=new int[totalLeafCount][tcv];                
-                int []leafID=getLeafIndex();
-                String [][]dataset=dss.getData();
+                ColumnarBatch dataset=dss.getBatch();
                 int ci=dss.getClassIndex();
+                int []cvIndex=dataset.getDictionary().mapCodes(ci, classValues);
+                int gen=nextGeneration();
+                Node []routed=routeBatch(dataset);
                 for(int r=0;r<n;r++)
                 {
-                    Node foundNode=findLeafForInstance(dataset[r]);
+                    Node foundNode=routed[r];
                     if(foundNode!=null)
                     {
-                        foundNode.addInstance(dataset[r]);
-                        int lid=ClassObserver.findArrayIndex(leafID,foundNode.getNodeIndex());
-                        int cid=ClassObserver.getCVIndex(classValues, dataset[r][ci]);
+                        foundNode.addInstance(dataset, r, gen, leafBatches, leafCapacity);
+                        int lid=leafOrdinal(foundNode);
+                        int cid=cvIndex[dataset.getCode(ci, r)];
                         if(lid>=0 && cid>=0)leafCVDist[lid][cid]++;
                     }
                 }
+                ClassPrediction prediction=new ClassPrediction();
                 for(int l=0;l<totalLeafCount;l++)
                 {
                     Node leaf=leafCollection.get(l);
                     if(isFirstBatch)
                     {
-                        ClassObserver.calculateConfidence(classValues, leafCVDist[l]);
+                        ClassObserver.calculateConfidence(classValues, leafCVDist[l], prediction);
                     }
                     else {
                         if(leaf.isClassDistributionSet())
                         {
                             String []oldLeafCVs=leaf.getLeafClassValues();
                             int []oldLeafDist=leaf.getLeafClassDistribution();
-                            ClassObserver.updateClassDistribution(oldLeafCVs, oldLeafDist, classValues, leafCVDist[l]);                        
+                            ClassObserver.updateClassDistribution(oldLeafCVs, oldLeafDist, classValues, leafCVDist[l], prediction);                        
                         }
                         else{
-                            ClassObserver.updateClassDistribution(classValues, leafCVDist[l]);                           
+                            ClassObserver.updateClassDistribution(classValues, leafCVDist[l], prediction);                           
                         }
                     }                     
                     leaf.setClassDistribution(classValues, leafCVDist[l]);
-                    leaf.setConfidence(ClassObserver.getConfidence());
-                    leaf.setLeafPrediction(ClassObserver.getMajorityCV());                    
+                    leaf.setConfidence(prediction.getConfidence());
+                    leaf.setLeafPrediction(prediction.getMajorityCV());                    
                 }
                 
             }
         }
         
-        public void updateSubTreeStats(String [][]dataset,String []leafCV,int ci)
+        /**
+         * Fills the leaves of a new subtree with the records of the leaf it
+         * replaces; gens are the generations of those records.
+         */
+        public void updateSubTreeStats(ColumnarBatch dataset,int []gens,String []leafCV,int ci)
         { 
-            int n=dataset.length;
+            int n=dataset.getNumRows();
             
             if(n>0)
             {
                 int tcv=leafCV.length;
                 int [][]leafCVDist=new int[totalLeafCount][tcv];                
-                int []leafID=getLeafIndex();
+                int []cvIndex=dataset.getDictionary().mapCodes(ci, leafCV);
+                double []row=new double[dataset.getNumOfAttrs()];
                 for(int r=0;r<n;r++)
                 {
-                    Node foundNode=findLeafForInstance(dataset[r]);
+                    Node foundNode=findLeafForInstance(dataset.getRow(r, row));
                     if(foundNode!=null)
                     {
-                        foundNode.addInstance(dataset[r]);
-                        int lid=ClassObserver.findArrayIndex(leafID,foundNode.getNodeIndex());
-                        int cid=ClassObserver.getCVIndex(leafCV, dataset[r][ci]);
+                        foundNode.addInstance(dataset, r, gens[r], leafBatches, leafCapacity);
+                        int lid=leafOrdinal(foundNode);
+                        int cid=cvIndex[dataset.getCode(ci, r)];
                         if(lid>=0 && cid>=0)leafCVDist[lid][cid]++;
                     }
                 }
+                ClassPrediction prediction=new ClassPrediction();
                 for(int l=0;l<totalLeafCount;l++)
                 {
                     Node leaf=leafCollection.get(l);
-                    ClassObserver.updateClassDistribution(leafCV, leafCVDist[l]);                           
+                    ClassObserver.updateClassDistribution(leafCV, leafCVDist[l], prediction);                           
                     leaf.setClassDistribution(leafCV, leafCVDist[l]);
-                    leaf.setConfidence(ClassObserver.getConfidence());
-                    leaf.setLeafPrediction(ClassObserver.getMajorityCV());                    
+                    leaf.setConfidence(prediction.getConfidence());
+                    leaf.setLeafPrediction(prediction.getMajorityCV());                    
                 }
                 
             }
@@ -1233,19 +2522,21 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         
         public void updateTreeSingleLeafStats(DatasetStats dss)
         { 
-            String [][]dataset=dss.getData();            
-            int n=dataset.length;
+            ColumnarBatch dataset=dss.getBatch();            
+            int n=dataset.getNumRows();
             
             if(n>0)
             {
+                int gen=nextGeneration();
                 for(int r=0;r<n;r++)
                 {
-                    root.addInstance(dataset[r]);                    
+                    root.addInstance(dataset, r, gen, leafBatches, leafCapacity);                    
                 }
-                ClassObserver.updateClassDistribution(dss.getClassValues(), dss.getClassDistribution());                           
+                ClassPrediction prediction=new ClassPrediction();
+                ClassObserver.updateClassDistribution(dss.getClassValues(), dss.getClassDistribution(), prediction);                           
                 root.setClassDistribution(dss.getClassValues(), dss.getClassDistribution());
-                root.setConfidence(ClassObserver.getConfidence());
-                root.setLeafPrediction(ClassObserver.getMajorityCV());                                 
+                root.setConfidence(prediction.getConfidence());
+                root.setLeafPrediction(prediction.getMajorityCV());                                 
             }
         }
         
@@ -1261,19 +2552,21 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                 int [] newClassDist=ClassObserver.updateClassDistribution(newClassValues,classValues,classDist.clone(), tmpClassValues, tmpClassDist);                
                 int tcv=newClassValues.length;
                 int [][]leafCVDist=new int[totalLeafCount][tcv];                
-                int []leafID=getLeafIndex();
-                String [][]dataset=dss.getData();
+                ColumnarBatch dataset=dss.getBatch();
                 int ci=dss.getClassIndex();
+                int []cvIndex=dataset.getDictionary().mapCodes(ci, newClassValues);
+                Node []routed=routeBatch(dataset);
                 for(int r=0;r<n;r++)
                 {
-                    Node foundNode=findLeafForInstance(dataset[r]);
+                    Node foundNode=routed[r];
                     if(foundNode!=null)
                     {                        
-                        int lid=ClassObserver.findArrayIndex(leafID,foundNode.getNodeIndex());
-                        int cid=ClassObserver.getCVIndex(newClassValues, dataset[r][ci]);
+                        int lid=leafOrdinal(foundNode);
+                        int cid=cvIndex[dataset.getCode(ci, r)];
                         if(lid>=0 && cid>=0)leafCVDist[lid][cid]++;
                     }
                 }
+                ClassPrediction prediction=new ClassPrediction();
                 for(int l=0;l<totalLeafCount;l++)
                 {
                     Node leaf=leafCollection.get(l);                    
@@ -1282,8 +2575,8 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                         String []oldLeafCVs=leaf.getLeafClassValues();
                         int []oldLeafDist=leaf.getLeafClassDistribution();
                         double preConfidence=leaf.getConfidence();
-                        ClassObserver.updateClassDistribution(oldLeafCVs, oldLeafDist, newClassValues, leafCVDist[l]);                        
-                        double newConfidence=ClassObserver.getConfidence();
+                        ClassObserver.updateClassDistribution(oldLeafCVs, oldLeafDist, newClassValues, leafCVDist[l], prediction);                        
+                        double newConfidence=prediction.getConfidence();
                         if(preConfidence>(newConfidence+errorTolerance))
                         {
                             leaf.setPerturbed();
@@ -1314,28 +2607,37 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                 }
             }
         }
-        public Node constructSubTree(String dsName,String []attrNames,int []attrType, int minLeafSize,int method,String batchFile,String [][]data, int classIndex)
+        public Node constructSubTree(String dsName,String []attrNames,int []attrType, AttributeDictionary dictionary, int minLeafSize,int method,ColumnarBatch data)
         {   
-            this.aNames=attrNames;
-            this.atype=attrType;
-            String tmpArffFile=ForestFunctions.changedFileName(batchFile, "-tmp");
-            ForestFunctions.createArffFile(dsName,attrNames,attrType,data,tmpArffFile);                    
-            ArffFileStream ARFFdataFile=new ArffFileStream(tmpArffFile,classIndex);              
-            Node node=constructSubTree(ARFFdataFile,attrNames,attrType,minLeafSize,method);  
-            ForestFunctions.removeFile(tmpArffFile);
-            return node;                  
+            weka.core.Instances instances=ForestFunctions.createWekaInstances(dsName,attrNames,attrType,data);
+            return constructSubTree(instances,attrNames,attrType,dictionary,minLeafSize,method);  
         }
         
-        public Node constructSubTree(ArffFileStream ARFFdataFile,String []attrNames,int []attrType, int minLeafSize,int method)
+        public Node constructSubTree(weka.core.Instances data,String []attrNames,int []attrType, AttributeDictionary dictionary, int minLeafSize,int method)
         {                     
-            String treeStr=ForestFunctions.buildClassifier(method, ARFFdataFile, 1, minLeafSize);
-            if(treeStr.equals(""))
+            this.aNames=attrNames;
+            this.atype=attrType;
+            this.dictionary=dictionary;
+            ForestModel model=ForestFunctions.buildClassifier(method, data, 1, minLeafSize, randomSeed, buildThreads);
+            if(model.isConverted())
             {
-                 return null;
+               Node subRoot=model.getRoots().get(0);
+               if(subRoot.isLeaf()) //a tree with just a single leaf
+               {
+                   root=null;
+               }
+               else
+               {
+                   constructTree(subRoot);
+               }
+               return root;
+            }
+            else if(model.getTreeString().equals(""))
+            {
+                 return null;
             }
             else{
-               if(method==2)treeStr=ForestFunctions.preprocessTree(treeStr);
-               constructRuleToTree(treeStr,attrNames,attrType);
+               constructRuleToTree(model.getTreeString(),attrNames,attrType);
                return root;
             }            
         }
@@ -1381,6 +2683,7 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             leafCollection.removeAll(leafCollection);
             totalLeafCount=0;
             updateTreeDepthAndIndex(root,0);
+            compileTree();
         }
         public void updateTreeDepth()
         {
@@ -1389,6 +2692,38 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             totalLeafCount=0;
             treeDepth=0;
             updateTreeDepthAndIndex(root,0);            
+            compileTree();
+        }
+        /**
+         * Rebuilds the flat routing form of the tree. It has to be called
+         * whenever the node structure changes, so that routing never sees a
+         * stale layout. A cached leaf assignment is brought up to date with
+         * the new layout.
+         */
+        private void compileTree()
+        {
+            compiledTree=new CompiledTree(root,aNames,dictionary);
+            for(int l=0;l<leafCollection.size();l++)
+            {
+                leafCollection.get(l).setLeafOrdinal(l);
+            }
+            if(routedBatch!=null)
+            {
+                refreshRoutedLeaves();
+            }
+        }
+        /**
+         * Row of leaf in the per leaf distribution arrays, or -1 if the node
+         * is not a leaf of this tree any more.
+         */
+        private int leafOrdinal(Node leaf)
+        {
+            int l=leaf.getLeafOrdinal();
+            return l>=0 && l<leafCollection.size() && leafCollection.get(l)==leaf?l:-1;
+        }
+        public CompiledTree getCompiledTree()
+        {
+            return compiledTree;
         }
         
         public int[]getLeafIndex()
@@ -1425,6 +2760,158 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                 }
             
         }
+        /**
+         * Approximate heap taken by the record buffers of the leaves and the
+         * batches they keep alive, counting only batches not in counted.
+         */
+        public long getLeafBufferBytes(Set<ColumnarBatch> counted)
+        {
+            long bytes=0;
+            for(Node leaf:leafCollection)
+            {
+                bytes+=leaf.getBufferBytes(counted);
+            }
+            return bytes;
+        }
+        public void write(CheckpointWriter w) throws IOException
+        {
+            DataOutputStream out=w.out();
+            w.writeStrings(aNames);
+            w.writeInts(atype);
+            w.writeStrings(classValues);
+            w.writeInts(classDist);
+            w.writeDoubles(treeMin);
+            w.writeDoubles(treeMax);
+            out.writeInt(totalNodeCount);
+            out.writeInt(treeDepth);
+            out.writeInt(generation);
+            root.write(w);
+        }
+        /**
+         * Restores a tree written by write. Node indexes are kept as they
+         * were, and the leaves are collected in the same depth first order
+         * updateTreeDepth uses.
+         */
+        public void read(CheckpointReader r,AttributeDictionary dictionary) throws IOException
+        {
+            DataInputStream in=r.in();
+            this.dictionary=dictionary;
+            aNames=r.readStrings();
+            atype=r.readInts();
+            classValues=r.readStrings();
+            classDist=r.readInts();
+            treeMin=r.readDoubles();
+            treeMax=r.readDoubles();
+            totalNodeCount=in.readInt();
+            treeDepth=in.readInt();
+            generation=in.readInt();
+            root=Node.read(r,null);
+            List<Node> nodes=new ArrayList<>();
+            collectNodes(root,nodes);
+            leafCollection.clear();
+            for(Node node:nodes)
+            {
+                if(node.isLeaf())leafCollection.add(node);
+            }
+            totalLeafCount=leafCollection.size();
+            compileTree();
+        }
+        /**
+         * Copy of the tree with its leaf statistics but without the leaf
+         * records, used by Forest.snapshot. The leaves do not change any
+         * more, so their votes are precomputed by class code.
+         */
+        public Tree snapshot(int classIndex)
+        {
+            Tree copy=new Tree();
+            copy.dictionary=dictionary;
+            copy.aNames=aNames;
+            copy.atype=atype;
+            copy.classValues=classValues;
+            copy.classDist=classDist;
+            copy.treeMin=treeMin!=null?treeMin.clone():null;
+            copy.treeMax=treeMax!=null?treeMax.clone():null;
+            copy.totalNodeCount=totalNodeCount;
+            copy.treeDepth=treeDepth;
+            copy.root=root.snapshot(null);
+            List<Node> nodes=new ArrayList<>();
+            collectNodes(copy.root,nodes);
+            for(Node node:nodes)
+            {
+                if(node.isLeaf())copy.leafCollection.add(node);
+            }
+            copy.totalLeafCount=copy.leafCollection.size();
+            copy.compileTree();
+            copy.compiledTree.mapLeafVotes(dictionary, classIndex);
+            return copy;
+        }
+        private void collectNodes(Node node,List<Node> nodes)
+        {
+            nodes.add(node);
+            for(Node child:node.getChildren())
+            {
+                collectNodes(child,nodes);
+            }
+        }
+        /**
+         * The leaf each record of batch reaches, or null where no branch
+         * matches. The assignment is computed once per batch and shared by
+         * perturbation detection, the leaf statistics and scoring.
+         */
+        public Node[] routeBatch(ColumnarBatch batch)
+        {
+            if(routedBatch!=batch)
+            {
+                int n=batch.getNumRows();
+                routedLeaves=new Node[n];
+                for(int r=0;r<n;r++)
+                {
+                    routedLeaves[r]=routeToLeaf(batch,r);
+                }
+                routedBatch=batch;
+                routedRoot=root;
+                routedTree=compiledTree;
+            }
+            else if(routedTree!=compiledTree)
+            {
+                refreshRoutedLeaves();
+            }
+            return routedLeaves;
+        }
+        /**
+         * Updates the cached leaf assignment in place after the tree has been
+         * recompiled. While the root is the same, records whose leaf is still
+         * a leaf of the tree keep it and only the records of leaves that were
+         * expanded are routed again; a new root routes every record again.
+         */
+        private void refreshRoutedLeaves()
+        {
+            int n=routedBatch.getNumRows();
+            boolean sameRoot=routedRoot==root;
+            for(int r=0;r<n;r++)
+            {
+                //a record that matched no branch still stops at the same internal node
+                if(!sameRoot || (routedLeaves[r]!=null && leafOrdinal(routedLeaves[r])<0))
+                {
+                    routedLeaves[r]=routeToLeaf(routedBatch,r);
+                }
+            }
+            routedRoot=root;
+            routedTree=compiledTree;
+        }
+        /**
+         * The cached leaf assignment for batch if it is still current,
+         * otherwise null.
+         */
+        public Node[] getRoutedLeaves(ColumnarBatch batch)
+        {
+            return routedBatch==batch && routedTree==compiledTree?routedLeaves:null;
+        }
+        private Node routeToLeaf(ColumnarBatch batch,int r)
+        {
+            int slot=compiledTree.route(batch,r);
+            return slot>=0?compiledTree.getNode(slot):null;
+        }
         public int getTotalNodeCount()
         {
             return this.totalNodeCount;
@@ -1447,99 +2934,282 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         }
         public Node findLeafForInstance(String []record)
         {
-           leafFoundFlag=false;
-           if(this.root!=null)
-           {
-               searchTree(record,this.root);
-           }
-           return findLeaf;
+           return findLeafForInstance(dictionary.encodeRecord(record));
         }
-        public String getClassValueForInstance(String []record)
+        /**
+         * Routes an encoded record to its leaf. The traversal only reads the
+         * compiled tree, so any number of threads may call it at once.
+         *
+         * @return the leaf reached, or null if no branch matched the record
+         */
+        public Node findLeafForInstance(double []row)
         {
-           Node foundNode=findLeafForInstance(record);
-           return foundNode.getLeafPrediction();
+           if(this.root==null)return null;
+           int slot=compiledTree.route(row);
+           return slot>=0?compiledTree.getNode(slot):null;
         }
-        private void searchTree(String []record,Node node)
+        
+        
+        public void describeSubTree(Node node, Appendable out, int indent) throws IOException
         {
             if(node.isLeaf())
             {
-                findLeaf=node;
-                leafFoundFlag=true;
+                out.append(": ").append(node.getLeafPrediction()).append(" ").append(node.getClassDistribution());
             }
             else
             {
-                String currentStr=record[ForestFunctions.findAttrIndex(node.getSplitName(),aNames)];
                 List<Node> children=node.getChildren();
-                for (int i=0;i<children.size() && leafFoundFlag==false;i++) 
+                for (Node child : children) {
+                    out.append("\n");
+                    for(int j=0;j<indent;j++)
+                    {
+                        out.append(levelPadding);
+                    }
+                    out.append(node.getSplitName()).append(" ").append(child.getSplitOp()).append(" ").append(child.getSplitValue());
+                    describeSubTree(child,out, child.getTreeDepth());
+                }
+            }
+        }
+        @Override
+        public String toString()
+        {
+            StringBuilder out=new StringBuilder();
+            try{
+                describeSubTree(root, out,0);
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+            return out.toString();
+        }
+    }
+    
+    /**
+     * Flat, array based form of a Tree used for routing records. Nodes are
+     * laid out breadth first so that the children of a node occupy a
+     * contiguous block starting at childStart. The split attribute is
+     * resolved to its index and the split value to a double (numeric
+     * attributes) or a dictionary code (nominal attributes) once, when the
+     * tree is compiled, so routing does no parsing or string comparison.
+     */
+    private static class CompiledTree{
+        private static final int OP_LE=0;
+        private static final int OP_LT=1;
+        private static final int OP_GT=2;
+        private static final int OP_GE=3;
+        private static final int OP_EQ=4;
+        private int []splitAttr;
+        private double []threshold;
+        private int []splitOp;
+        private int []childStart;
+        private int []childCount;
+        private Node []nodes;
+        private int [][]voteCodes;
+        private double [][]voteWeights;
+        
+        CompiledTree(Node root,String []attrNames,AttributeDictionary dictionary)
+        {
+            List<Node> order=new ArrayList<>();
+            if(root!=null)order.add(root);
+            //breadth first, so that siblings are stored next to each other
+            for(int i=0;i<order.size();i++)
+            {
+                order.addAll(order.get(i).getChildren());
+            }
+            int n=order.size();
+            splitAttr=new int[n];
+            threshold=new double[n];
+            splitOp=new int[n];
+            childStart=new int[n];
+            childCount=new int[n];
+            nodes=order.toArray(new Node[n]);
+            int next=1;
+            for(int i=0;i<n;i++)
+            {
+                Node node=nodes[i];
+                node.setSlot(i);
+                splitAttr[i]=-1;
+                if(!node.isLeaf())
                 {
-                    Node child =children.get(i);
-                    String splitValue=child.getSplitValue();
-                    if(node.isNumeric())
+                    int attr=ForestFunctions.findAttrIndex(node.getSplitName(),attrNames);
+                    if(attr<0)
                     {
-                        boolean flag=false;
-                        double rval=Double.parseDouble(currentStr);
-                        double sval=Double.parseDouble(splitValue);
-                        String splitOp=child.getSplitOp();
-                        if(splitOp.equals("<="))
-                           {
-                               if(rval<=sval) flag=true;
-                           }
-                        else if(splitOp.equals("<"))
-                           {
-                               if(rval<sval) flag=true;
-                           }                
-                        else if(splitOp.equals(">"))
-                           {
-                               if(rval>sval) flag=true;
-                           }
-                        else if(splitOp.equals(">="))
-                           {
-                               if(rval>=sval) flag=true;
-                           }
-                        if(flag)
-                        {
-                            searchTree(record,child);
-                        }
+                        throw new IllegalStateException("Unknown split attribute: "+node.getSplitName());
                     }
-                    else
+                    splitAttr[i]=attr;
+                    childStart[i]=next;
+                    childCount[i]=node.getNumberOfChildren();
+                    for(Node child:node.getChildren())
                     {
-                        if(splitValue.equals(currentStr))
+                        if(node.isNumeric())
                         {
-                            searchTree(record,child);
+                            splitOp[next]=opCode(child.getSplitOp());
+                            threshold[next]=Double.parseDouble(child.getSplitValue());
                         }
+                        else
+                        {
+                            splitOp[next]=OP_EQ;
+                            threshold[next]=dictionary.intern(attr, child.getSplitValue());
+                        }
+                        next++;
                     }
                 }
-                
             }
         }
-        
-        
-        public void describeSubTree(Node node, StringBuilder out, int indent)
+        private static int opCode(String op)
         {
-            if(node.isLeaf())
+            if(op.equals("<="))
+                return OP_LE;
+            else if(op.equals("<"))
+                return OP_LT;
+            else if(op.equals(">"))
+                return OP_GT;
+            else if(op.equals(">="))
+                return OP_GE;
+            else
+                return OP_EQ;
+        }
+        /**
+         * Routes an encoded record from the root to a leaf.
+         *
+         * @param row the record encoded by an AttributeDictionary
+         * @return the slot of the leaf reached, or -1 if no child matched
+         */
+        public int route(double []row)
+        {
+            if(nodes.length==0)return -1;
+            int slot=0;
+            while(splitAttr[slot]>=0)
             {
-                out.append(": "+node.getLeafPrediction()+" "+node.getClassDistribution());
+                double val=row[splitAttr[slot]];
+                int c=childStart[slot];
+                int end=c+childCount[slot];
+                while(c<end && !matches(splitOp[c],val,threshold[c]))
+                {
+                    c++;
+                }
+                if(c==end)return -1;
+                slot=c;
             }
-            else
+            return slot;
+        }
+        /**
+         * Routes a record of a columnar block without copying it into a row.
+         */
+        public int route(ColumnarBatch block,int row)
+        {
+            if(nodes.length==0)return -1;
+            int slot=0;
+            while(splitAttr[slot]>=0)
             {
-                List<Node> children=node.getChildren();
-                for (Node child : children) {
-                    out.append("\n");
-                    for(int j=0;j<indent;j++)
+                double val=block.getEncoded(splitAttr[slot],row);
+                int c=childStart[slot];
+                int end=c+childCount[slot];
+                while(c<end && !matches(splitOp[c],val,threshold[c]))
+                {
+                    c++;
+                }
+                if(c==end)return -1;
+                slot=c;
+            }
+            return slot;
+        }
+        /**
+         * Maps every leaf slot to the index of its prediction in classIndex;
+         * internal nodes and unknown predictions map to -1.
+         */
+        public int[] mapLeaves(Map<String,Integer> classIndex)
+        {
+            int []leafClass=new int[nodes.length];
+            for(int i=0;i<nodes.length;i++)
+            {
+                Integer k=nodes[i].isLeaf()?classIndex.get(nodes[i].getLeafPrediction()):null;
+                leafClass[i]=k==null?-1:k;
+            }
+            return leafClass;
+        }
+        /**
+         * Precomputes, for every leaf slot, the class codes and weights that
+         * forestVotes adds for a record reaching the leaf. Only valid while
+         * the leaves keep their distributions, i.e. for a snapshot.
+         */
+        public void mapLeafVotes(AttributeDictionary dictionary,int classIndex)
+        {
+            voteCodes=new int[nodes.length][];
+            voteWeights=new double[nodes.length][];
+            for(int i=0;i<nodes.length;i++)
+            {
+                if(!nodes[i].isLeaf())continue;
+                double []votes=new double[dictionary.getDomainSize(classIndex)];
+                addVotes(nodes[i], dictionary, classIndex, votes);
+                int n=0;
+                for(double v:votes)if(v>0)n++;
+                voteCodes[i]=new int[n];
+                voteWeights[i]=new double[n];
+                n=0;
+                for(int c=0;c<votes.length;c++)
+                {
+                    if(votes[c]>0)
                     {
-                        out.append(levelPadding);
+                        voteCodes[i][n]=c;
+                        voteWeights[i][n++]=votes[c];
                     }
-                    out.append(node.getSplitName()+" "+child.getSplitOp()+" "+child.getSplitValue());
-                    describeSubTree(child,out, child.getTreeDepth());
                 }
             }
         }
-        @Override
-        public String toString()
+        public boolean hasLeafVotes()
         {
-            StringBuilder out=new StringBuilder();
-            describeSubTree(root, out,0);
-            return out.toString();
+            return voteCodes!=null;
+        }
+        public void addLeafVotes(int slot,double []votes)
+        {
+            int []codes=voteCodes[slot];
+            double []weights=voteWeights[slot];
+            for(int i=0;i<codes.length;i++)
+            {
+                if(codes[i]<votes.length)votes[codes[i]]+=weights[i];
+            }
+        }
+        /**
+         * Adds the votes of a leaf: its class distribution normalised to one,
+         * or a single vote for its prediction if it has no distribution.
+         */
+        static void addVotes(Node leaf,AttributeDictionary dictionary,int classIndex,double []votes)
+        {
+            if(leaf.leafClassValues!=null && leaf.leafClassValues.length>0)
+            {
+                String []leafCV=leaf.leafClassValues;
+                int []leafDist=leaf.leafClassDistribution;
+                double total=0;
+                for(int i=0;i<leafDist.length;i++)total+=leafDist[i];
+                if(total>0)
+                {
+                    for(int i=0;i<leafCV.length;i++)
+                    {
+                        int code=dictionary.getCode(classIndex, leafCV[i]);
+                        if(code>=0 && code<votes.length)votes[code]+=leafDist[i]/total;
+                    }
+                    return;
+                }
+            }
+            int code=dictionary.getCode(classIndex, leaf.getLeafPrediction());
+            if(code>=0 && code<votes.length)votes[code]++;
+        }
+        private static boolean matches(int op,double val,double sval)
+        {
+            switch(op)
+            {
+                case OP_LE: return val<=sval;
+                case OP_LT: return val<sval;
+                case OP_GT: return val>sval;
+                case OP_GE: return val>=sval;
+                default: return val==sval;
+            }
+        }
+        public Node getNode(int slot)
+        {
+            return nodes[slot];
         }
     }
     
@@ -1547,7 +3217,7 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
     {
         private Node parent;
         private List<Node> children = new ArrayList<>();
-        List<String[]> recordList = new ArrayList<String[]>();
+        private LeafRecords recordList = new LeafRecords();
         private boolean isLeafNode;
         private int nodeIndex;
         private int nodeType;
@@ -1561,6 +3231,8 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         private int []leafClassDistribution;
         private boolean leafPerturbed;
         private double confidence;
+        private int slot=-1;
+        private int leafOrdinal=-1;
         
         Node(Node parent,int treeDepth,boolean isLeafNode,int nodeIndex)
         {
@@ -1670,6 +3342,28 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         {
             return this.isLeafNode;
         }
+        /**
+         * Position of the node in the CompiledTree it was last compiled into.
+         */
+        public int getSlot()
+        {
+            return slot;
+        }
+        public void setSlot(int slot)
+        {
+            this.slot=slot;
+        }
+        /**
+         * Position of the leaf in the leaf collection of its tree.
+         */
+        public int getLeafOrdinal()
+        {
+            return leafOrdinal;
+        }
+        public void setLeafOrdinal(int leafOrdinal)
+        {
+            this.leafOrdinal=leafOrdinal;
+        }
         public void setNodeIndex(int nodeIndex)
         {
             this.nodeIndex=nodeIndex;            
@@ -1678,31 +3372,41 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         {
             return this.nodeIndex;            
         }
-        public void addInstance(String []record)
+        public void addInstance(ColumnarBatch batch, int row, int gen, int maxBatches, int capacity)
+        {
+            recordList.add(batch, row, gen, maxBatches, capacity);
+        }
+        public void ageRecords(int current, int maxBatches)
+        {
+            recordList.ageOut(current, maxBatches);
+        }
+        public ColumnarBatch getLeafData()
+        {
+           return recordList.toBatch();
+        }
+        public int []getLeafGenerations()
         {
-            recordList.add(record);
+           return recordList.getGenerations();
         }
-        public List<String []> getLeafData()
+        public int getNumRecords()
         {
-           return recordList;
+           return recordList.size();
         }
-        public String[] getLeafData(int index)
+        public long getBufferBytes(Set<ColumnarBatch> counted)
         {
-           return recordList.get(index);
+           return recordList.getBufferBytes(counted);
         }               
         public void setClassDistribution(String []classValues, int []classDistribution)
         {
             this.leafClassValues=classValues.clone();
             this.leafClassDistribution=classDistribution.clone();
-            classValuesDistribution="{";
+            StringBuilder cvd=new StringBuilder("{");
             for(int i=0;i<leafClassValues.length;i++)
             {
-                if(i==0)
-                    classValuesDistribution+=leafClassValues[i]+":"+leafClassDistribution[i];
-                else
-                    classValuesDistribution+=", "+leafClassValues[i]+":"+leafClassDistribution[i];
+                if(i>0)cvd.append(", ");
+                cvd.append(leafClassValues[i]).append(":").append(leafClassDistribution[i]);
             }
-            classValuesDistribution+="}";
+            classValuesDistribution=cvd.append("}").toString();
         }
         public boolean isClassDistributionSet()
         {
@@ -1742,11 +3446,100 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             return this.confidence==1.0;
         }
         
+        /**
+         * Copies the split structure of the subtree below this node. Leaf
+         * records and class distributions are not copied; they are worked
+         * out again when the copy is trained on a batch.
+         */
+        public Node copySubTree(Node parent)
+        {
+            Node copy=copyNode(parent);
+            for(Node child:children)
+            {
+                copy.addChild(child.copySubTree(copy));
+            }
+            return copy;
+        }
+        /**
+         * Copies the subtree below this node together with the leaf
+         * predictions and class distributions, but not the leaf records.
+         */
+        public Node snapshot(Node parent)
+        {
+            Node copy=copyNode(parent);
+            copy.classValuesDistribution=classValuesDistribution;
+            copy.leafClassValues=leafClassValues;
+            copy.leafClassDistribution=leafClassDistribution;
+            copy.leafPerturbed=leafPerturbed;
+            copy.confidence=confidence;
+            for(Node child:children)
+            {
+                copy.addChild(child.snapshot(copy));
+            }
+            return copy;
+        }
+        private Node copyNode(Node parent)
+        {
+            Node copy=new Node(parent,treeDepth,isLeafNode,nodeIndex);
+            copy.setNodeInfo(nodeType, splitAttrName);
+            copy.setSplitInfo(splitOp, splitValue);
+            copy.setLeafPrediction(majorityClassValue);
+            return copy;
+        }
+        /**
+         * Writes the node and, depth first, the subtree below it.
+         */
+        public void write(CheckpointWriter w) throws IOException
+        {
+            DataOutputStream out=w.out();
+            out.writeBoolean(isLeafNode);
+            out.writeInt(nodeIndex);
+            out.writeInt(nodeType);
+            out.writeInt(treeDepth);
+            w.writeString(splitAttrName);
+            w.writeString(splitOp);
+            w.writeString(splitValue);
+            w.writeString(majorityClassValue);
+            w.writeStrings(leafClassValues);
+            w.writeInts(leafClassDistribution);
+            out.writeBoolean(leafPerturbed);
+            out.writeDouble(confidence);
+            recordList.write(w);
+            out.writeInt(children.size());
+            for(Node child:children)
+            {
+                child.write(w);
+            }
+        }
+        public static Node read(CheckpointReader r,Node parent) throws IOException
+        {
+            DataInputStream in=r.in();
+            boolean isLeaf=in.readBoolean();
+            int index=in.readInt();
+            int type=in.readInt();
+            Node node=new Node(parent,in.readInt(),isLeaf,index);
+            node.setNodeInfo(type, r.readString());
+            node.setSplitInfo(r.readString(), r.readString());
+            node.setLeafPrediction(r.readString());
+            String []cv=r.readStrings();
+            int []dist=r.readInts();
+            if(cv!=null)node.setClassDistribution(cv, dist);
+            node.leafPerturbed=in.readBoolean();
+            node.confidence=in.readDouble();
+            node.recordList=LeafRecords.read(r);
+            int noc=in.readInt();
+            for(int i=0;i<noc;i++)
+            {
+                node.addChild(read(r,node));
+            }
+            return node;
+        }
         @Override
         public String toString()
         {
             String nStr="";
-            nStr+="Node Index:"+this.nodeIndex+", data size:"+recordList.size()+"\n";
+            nStr+="Node Index:"+this.nodeIndex+", data size:"+recordList.size()
+                    +", buffer (bytes):"+recordList.getBufferBytes(Collections.newSetFromMap(new IdentityHashMap<ColumnarBatch,Boolean>()))+", batches referenced:"+recordList.getNumBatches()+"\n";
             nStr+="Class distribution:\n"+getClassDistribution();
             nStr+="\nIsPure:"+isPure()+", Class prediction:"+this.majorityClassValue;
             nStr+=", Confidence:"+this.confidence+"\n";
@@ -1754,314 +3547,1643 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         }
     }
     
-    private static class ClassObserver{
-        private static double confidence=0.0;
-        private static String majorityCV;
-        private static int numnewcv;
-        private static String[] updateClassValues(String []OCV, String []NCV)
+    /**
+     * Trees learned by one of the base forest algorithms: their root nodes
+     * when ModelConverter could walk the trained model, otherwise the model
+     * text in the format constructRuleToForest parses.
+     */
+    private static class ForestModel{
+        private final List<Node> roots;
+        private final String treeStr;
+        ForestModel(List<Node> roots,String treeStr)
         {
-            int ol=OCV.length;
-            int nl=NCV.length;
-            numnewcv=0;
-            ArrayList<String> oldCV=new ArrayList<String>();
-            for(int i=0;i<ol;i++)
+            this.roots=roots;
+            this.treeStr=treeStr;
+        }
+        public boolean isConverted()
+        {
+            return roots!=null;
+        }
+        public List<Node> getRoots()
+        {
+            return roots;
+        }
+        public String getTreeString()
+        {
+            return treeStr;
+        }
+    }
+    
+    /**
+     * Walks trained RandomForest/RandomTree and HoeffdingTree models into
+     * Node structures, giving the same trees the text parser would, but
+     * without printing and re-parsing the model. The WEKA tree internals are
+     * not public, so they are read reflectively. A null result means the
+     * model could not be converted and the caller falls back to the text.
+     */
+    private static class ModelConverter{
+        private static final Field FOREST_MEMBERS=findField("weka.classifiers.IteratedSingleClassifierEnhancer","m_Classifiers");
+        private static final Field RT_TREE=findField("weka.classifiers.trees.RandomTree","m_Tree");
+        private static final Field RT_INFO=findField("weka.classifiers.trees.RandomTree","m_Info");
+        private static final Field RT_ZEROR=findField("weka.classifiers.trees.RandomTree","m_zeroR");
+        private static final Field RT_ATTRIBUTE=findField("weka.classifiers.trees.RandomTree$Tree","m_Attribute");
+        private static final Field RT_SPLIT_POINT=findField("weka.classifiers.trees.RandomTree$Tree","m_SplitPoint");
+        private static final Field RT_SUCCESSORS=findField("weka.classifiers.trees.RandomTree$Tree","m_Successors");
+        private static final Field RT_CLASS_DIST=findField("weka.classifiers.trees.RandomTree$Tree","m_ClassDistribution");
+        private static final Field HT_EQUALS_PASSES=findField("moa.classifiers.core.conditionaltests.NumericAttributeBinaryTest","equalsPassesTest");
+        
+        private static Field findField(String className,String fieldName)
+        {
+            try{
+                Field field=Class.forName(className).getDeclaredField(fieldName);
+                field.setAccessible(true);
+                return field;
+            }
+            catch(ReflectiveOperationException | RuntimeException e)
             {
-                oldCV.add(OCV[i]);
+                return null;
             }
-            for(int i=0;i<nl;i++)
+        }
+        
+        public static List<Node> convertWekaForest(Classifier classifier)
+        {
+            if(FOREST_MEMBERS==null || RT_TREE==null || RT_INFO==null || RT_ZEROR==null || RT_ATTRIBUTE==null
+                    || RT_SPLIT_POINT==null || RT_SUCCESSORS==null || RT_CLASS_DIST==null)
             {
-                if(!oldCV.contains(NCV[i]))
+                return null;
+            }
+            try{
+                Object []members;
+                if(classifier instanceof RandomForest)
+                    members=(Object[])FOREST_MEMBERS.get(classifier);
+                else
+                    members=new Object[]{classifier};
+                if(members==null)return null;
+                List<Node> roots=new ArrayList<>(members.length);
+                for(Object member:members)
                 {
-                    oldCV.add(NCV[i]);
-                    numnewcv++;
+                    if(!(member instanceof RandomTree))return null;
+                    RandomTree model=(RandomTree)member;
+                    Object tree=RT_TREE.get(model);
+                    weka.core.Instances info=(weka.core.Instances)RT_INFO.get(model);
+                    if(RT_ZEROR.get(model)!=null || tree==null || info==null)return null;
+                    roots.add(convertRandomTree(tree,null,info,model.getNumDecimalPlaces()));
+                }
+                return roots;
+            }
+            catch(ReflectiveOperationException | RuntimeException e)
+            {
+                return null;
+            }
+        }
+        
+        private static Node convertRandomTree(Object tree,Node parent,weka.core.Instances info,int decimalPlaces) throws ReflectiveOperationException
+        {
+            int attrIndex=RT_ATTRIBUTE.getInt(tree);
+            if(attrIndex==-1)
+            {
+                double []classDist=(double[])RT_CLASS_DIST.get(tree);
+                int maxIndex=classDist==null?0:weka.core.Utils.maxIndex(classDist);
+                Node leaf=new Node(parent,0,true,0);
+                leaf.setLeafPrediction(info.classAttribute().value(maxIndex));
+                return leaf;
+            }
+            weka.core.Attribute attr=info.attribute(attrIndex);
+            Object []successors=(Object[])RT_SUCCESSORS.get(tree);
+            Node node=new Node(parent,0,false,0);
+            node.setNodeInfo(attr.isNumeric()?1:0, attr.name());
+            for(int i=0;i<successors.length;i++)
+            {
+                Node child=convertRandomTree(successors[i],node,info,decimalPlaces);
+                if(attr.isNumeric())
+                {
+                    String splitValue=weka.core.Utils.doubleToString(RT_SPLIT_POINT.getDouble(tree), decimalPlaces);
+                    child.setSplitInfo(i==0?"<":">=", splitValue);
+                }
+                else
+                {
+                    child.setSplitInfo("=", attr.value(i));
                 }
+                node.addChild(child);
+            }
+            return node;
+        }
+        
+        public static List<Node> convertHoeffdingForest(HoeffdingTree []forest)
+        {
+            if(HT_EQUALS_PASSES==null)return null;
+            try{
+                List<Node> roots=new ArrayList<>(forest.length);
+                for(HoeffdingTree ht:forest)
+                {
+                    InstancesHeader header=ht.getModelContext();
+                    if(ht.getTreeRoot()==null || header==null)return null;
+                    Node root=convertHoeffdingTree(ht.getTreeRoot(),null,header);
+                    if(root==null)return null;
+                    roots.add(root);
+                }
+                return roots;
+            }
+            catch(ReflectiveOperationException | RuntimeException e)
+            {
+                return null;
+            }
+        }
+        
+        private static Node convertHoeffdingTree(HoeffdingTree.Node htNode,Node parent,InstancesHeader header) throws ReflectiveOperationException
+        {
+            if(!(htNode instanceof HoeffdingTree.SplitNode))
+            {
+                double []classDist=htNode.getObservedClassDistribution();
+                int maxIndex=0;
+                for(int i=1;i<classDist.length;i++)
+                {
+                    if(classDist[i]>classDist[maxIndex])maxIndex=i;
+                }
+                Node leaf=new Node(parent,0,true,0);
+                leaf.setLeafPrediction(header.classAttribute().value(maxIndex));
+                return leaf;
+            }
+            HoeffdingTree.SplitNode splitNode=(HoeffdingTree.SplitNode)htNode;
+            InstanceConditionalTest test=splitNode.getSplitTest();
+            if(!(test instanceof NumericAttributeBinaryTest) && !(test instanceof NominalAttributeMultiwayTest))
+            {
+                return null;
+            }
+            int attrIndex=test.getAttsTestDependsOn()[0];
+            com.yahoo.labs.samoa.instances.Attribute attr=header.attribute(attrIndex);
+            Node node=new Node(parent,0,false,0);
+            node.setNodeInfo(attr.isNumeric()?1:0, attr.name());
+            for(int branch=0;branch<splitNode.numChildren();branch++)
+            {
+                HoeffdingTree.Node htChild=splitNode.getChild(branch);
+                if(htChild==null)continue;
+                Node child=convertHoeffdingTree(htChild,node,header);
+                if(child==null)return null;
+                if(test instanceof NumericAttributeBinaryTest)
+                {
+                    NumericAttributeBinaryTest numericTest=(NumericAttributeBinaryTest)test;
+                    boolean equalsPasses=HT_EQUALS_PASSES.getBoolean(numericTest);
+                    String splitOp=branch==0?(equalsPasses?"<=":"<"):(equalsPasses?">":">=");
+                    child.setSplitInfo(splitOp, InstancesHeader.getNumericValueString(header, attrIndex, numericTest.getSplitValue()));
+                }
+                else
+                {
+                    child.setSplitInfo("=", attr.value(branch));
+                }
+                node.addChild(child);
+            }
+            return node;
+        }
+    }
+    
+    /**
+     * Majority class value and confidence worked out by ClassObserver for a
+     * class distribution. The holder is supplied by the caller, so the same
+     * instance can be reused for every leaf of a tree.
+     */
+    private static class ClassPrediction{
+        private int majorityIndex;
+        private String majorityCV;
+        private double confidence;
+        private void set(String []NCV, int []ndist)
+        {
+            int nl=NCV.length;
+            int maxIndex=0;
+            int total=ndist[0];
+            for(int i=1;i<nl;i++)
+            {
+                total+=ndist[i];
+                if(ndist[i]>ndist[maxIndex])
+                    maxIndex=i;
+            }
+            majorityIndex=maxIndex;
+            majorityCV=NCV[maxIndex];            
+            //confidence
+            confidence=(double)ndist[maxIndex]/(double)total;
+        }
+        public int getMajorityIndex()
+        {
+            return majorityIndex;
+        }
+        public String getMajorityCV()
+        {
+            return majorityCV;
+        }
+        public double getConfidence()
+        {
+            return confidence;
+        }
+    }
+    
+    /**
+     * Stateless helpers for class values and class distributions. Results
+     * are returned or written to a caller supplied ClassPrediction, so the
+     * methods can be called from several threads at once.
+     */
+    private static class ClassObserver{
+        private static String[] updateClassValues(String []OCV, String []NCV)
+        {
+            int ol=OCV.length;
+            int nl=NCV.length;
+            ArrayList<String> oldCV=new ArrayList<String>();
+            for(int i=0;i<ol;i++)
+            {
+                oldCV.add(OCV[i]);
+            }
+            for(int i=0;i<nl;i++)
+            {
+                if(!oldCV.contains(NCV[i]))
+                {
+                    oldCV.add(NCV[i]);
+                }
+            }
+            return oldCV.toArray(new String[oldCV.size()]);
+        }
+        private static int []updateClassDistribution(String []TCV,
+                String []OCV,int []odist, String []NCV, int []ndist)
+        {
+            int tl=TCV.length;
+            int []tdist=new int[tl];
+            addClassDistribution(OCV,odist,TCV,tdist);
+            addClassDistribution(NCV,ndist,TCV,tdist);
+            return tdist;
+        }
+        /**
+         * Adds the counts of odist (over the class values OCV) to tdist (over
+         * the class values TCV). Class values are only ever appended, so OCV
+         * is normally a prefix of TCV and the class ids line up directly;
+         * the value lookup is only needed when they do not.
+         */
+        private static void addClassDistribution(String []OCV,int []odist, String []TCV, int []tdist)
+        {
+            int ol=OCV.length;
+            if(isPrefix(OCV,TCV))
+            {
+                for(int i=0;i<ol;i++)
+                {
+                    tdist[i]+=odist[i];
+                }
+            }
+            else
+            {
+                for(int i=0;i<ol;i++)
+                {
+                    int index=getCVIndex(TCV,OCV[i]);
+                    if(index>=0)tdist[index]+=odist[i];
+                }
+            }
+        }
+        private static boolean isPrefix(String []OCV, String []TCV)
+        {
+            int ol=OCV.length;
+            if(ol>TCV.length)return false;
+            for(int i=0;i<ol;i++)
+            {
+                if(OCV[i]!=TCV[i] && !OCV[i].equals(TCV[i]))
+                    return false;
+            }
+            return true;
+        }
+        private static ClassPrediction updateClassDistribution(String []OCV,int []odist, String []NCV, int []ndist,
+                ClassPrediction prediction)
+        {
+            addClassDistribution(OCV,odist,NCV,ndist);
+            prediction.set(NCV, ndist);
+            return prediction;
+        }
+        private static ClassPrediction updateClassDistribution(String []NCV, int []ndist, ClassPrediction prediction)
+        {
+            prediction.set(NCV, ndist);
+            return prediction;
+        }
+        private static ClassPrediction calculateConfidence( String []NCV, int []ndist, ClassPrediction prediction)
+        {
+            prediction.set(NCV, ndist);
+            return prediction;
+        }    
+        private static String findMajorityClassValue(String []NCV, int []ndist)
+        {
+            int nl=NCV.length;
+            int maxIndex=0;
+            for(int i=1;i<nl;i++)
+            {
+                if(ndist[i]>ndist[maxIndex])
+                    maxIndex=i;
+            }
+            return NCV[maxIndex];            
+        }
+        private static int getCVIndex(String []values, String cv)
+        {
+            int index=-1;
+            int l=values.length;
+            for(int i=0;i<l;i++)
+            {
+                if(values[i].equals(cv))
+                {
+                    index=i;break;
+                }
+            }
+            return index;
+        }
+    }
+    
+    
+    /**
+     * Per attribute dictionary that maps nominal values to dense integer
+     * codes. Numeric attributes are parsed to doubles and nominal (and class)
+     * attributes are replaced by their code, so an encoded record can be
+     * routed through a CompiledTree without any string handling. Codes are
+     * only ever appended, therefore a code never changes once handed out.
+     */
+    private static class AttributeDictionary{
+        private final int []attrType;
+        private final List<Map<String,Integer>> codes=new ArrayList<>();
+        private final List<List<String>> values=new ArrayList<>();
+        AttributeDictionary(int []attrType)
+        {
+            this.attrType=attrType.clone();
+            for(int i=0;i<attrType.length;i++)
+            {
+                codes.add(new ConcurrentHashMap<String,Integer>());
+                values.add(new CopyOnWriteArrayList<String>());
+            }
+        }
+        /**
+         * Synchronized, because with concurrent updates the PF and AF/TF
+         * repairs intern the values of new subtrees at the same time.
+         */
+        public synchronized int intern(int attr,String value)
+        {
+            Integer code=codes.get(attr).get(value);
+            if(code==null)
+            {
+                code=values.get(attr).size();
+                values.get(attr).add(value);
+                codes.get(attr).put(value, code);
+            }
+            return code;
+        }
+        public int getCode(int attr,String value)
+        {
+            Integer code=codes.get(attr).get(value);
+            return code==null?-1:code;
+        }
+        public String getValue(int attr,int code)
+        {
+            return values.get(attr).get(code);
+        }
+        public int getDomainSize(int attr)
+        {
+            return values.get(attr).size();
+        }
+        /**
+         * Maps every code of an attribute to the position of its value in
+         * the supplied array, or to -1 if the value is not in the array.
+         */
+        public int []mapCodes(int attr,String []domain)
+        {
+            int []index=new int[getDomainSize(attr)];
+            Arrays.fill(index, -1);
+            for(int i=0;i<domain.length;i++)
+            {
+                int code=getCode(attr, domain[i]);
+                if(code>=0 && code<index.length && index[code]<0)index[code]=i;
+            }
+            return index;
+        }
+        public boolean isNumeric(int attr)
+        {
+            return attrType[attr]==1;
+        }
+        public int getNumOfAttrs()
+        {
+            return attrType.length;
+        }
+        /**
+         * Encodes a record for routing. Nominal values that have never been
+         * interned get the code -1, which does not match any split.
+         */
+        public double []encodeRecord(String []record)
+        {
+            int noa=attrType.length;
+            double []row=new double[noa];
+            for(int j=0;j<noa;j++)
+            {
+                if(attrType[j]==1)
+                    row[j]=parseNumeric(record[j]);
+                else
+                    row[j]=getCode(j,record[j]);
+            }
+            return row;
+        }
+        public void write(CheckpointWriter w) throws IOException
+        {
+            w.writeInts(attrType);
+            for(int j=0;j<attrType.length;j++)
+            {
+                w.writeStrings(values.get(j).toArray(new String[0]));
+            }
+        }
+        public static AttributeDictionary read(CheckpointReader r) throws IOException
+        {
+            AttributeDictionary dictionary=new AttributeDictionary(r.readInts());
+            for(int j=0;j<dictionary.getNumOfAttrs();j++)
+            {
+                for(String value:r.readStrings())
+                {
+                    dictionary.intern(j, value);
+                }
+            }
+            return dictionary;
+        }
+        public static double parseNumeric(String value)
+        {
+            try{
+                return Double.parseDouble(value);
+            }
+            catch(NumberFormatException e)
+            {
+                return Double.NaN;
+            }
+        }
+    }
+    
+    /**
+     * Column oriented store of a batch of records. Numeric attributes are
+     * kept as double columns and nominal (and class) attributes as columns
+     * of AttributeDictionary codes, so the batch is parsed once when it is
+     * ingested and every later pass works on primitives.
+     */
+    private static class ColumnarBatch{
+        private final AttributeDictionary dictionary;
+        private final int numRows;
+        private final double [][]numeric;
+        private final int [][]nominal;
+        ColumnarBatch(AttributeDictionary dictionary,int numRows)
+        {
+            this.dictionary=dictionary;
+            this.numRows=numRows;
+            int noa=dictionary.getNumOfAttrs();
+            this.numeric=new double[noa][];
+            this.nominal=new int[noa][];
+            for(int j=0;j<noa;j++)
+            {
+                if(dictionary.isNumeric(j))
+                    numeric[j]=new double[numRows];
+                else
+                    nominal[j]=new int[numRows];
+            }
+        }
+        private ColumnarBatch(AttributeDictionary dictionary,int numRows,double [][]numeric,int [][]nominal)
+        {
+            this.dictionary=dictionary;
+            this.numRows=numRows;
+            this.numeric=numeric;
+            this.nominal=nominal;
+        }
+        ColumnarBatch(AttributeDictionary dictionary,String [][]records)
+        {
+            this(dictionary,records.length);
+            for(int r=0;r<numRows;r++)
+            {
+                setRecord(r, records[r]);
+            }
+        }
+        /**
+         * Encodes records that are only scored. Unlike the constructor it does
+         * not intern unseen nominal values; they get code -1 and match no
+         * branch.
+         */
+        public static ColumnarBatch encode(AttributeDictionary dictionary,String [][]records)
+        {
+            ColumnarBatch block=new ColumnarBatch(dictionary,records.length);
+            int noa=block.getNumOfAttrs();
+            for(int r=0;r<records.length;r++)
+            {
+                for(int j=0;j<noa;j++)
+                {
+                    if(block.numeric[j]!=null)
+                        block.numeric[j][r]=AttributeDictionary.parseNumeric(records[r][j]);
+                    else
+                        block.nominal[j][r]=dictionary.getCode(j, records[r][j]);
+                }
+            }
+            return block;
+        }
+        public void setRecord(int row,String []record)
+        {
+            int noa=numeric.length;
+            for(int j=0;j<noa;j++)
+            {
+                if(numeric[j]!=null)
+                    numeric[j][row]=AttributeDictionary.parseNumeric(record[j]);
+                else
+                    nominal[j][row]=dictionary.intern(j, record[j]);
+            }
+        }
+        public int getNumRows()
+        {
+            return numRows;
+        }
+        public int getNumOfAttrs()
+        {
+            return numeric.length;
+        }
+        public AttributeDictionary getDictionary()
+        {
+            return dictionary;
+        }
+        public double []getNumericColumn(int attr)
+        {
+            return numeric[attr];
+        }
+        public int []getNominalColumn(int attr)
+        {
+            return nominal[attr];
+        }
+        public double getNumeric(int attr,int row)
+        {
+            return numeric[attr][row];
+        }
+        public int getCode(int attr,int row)
+        {
+            return nominal[attr][row];
+        }
+        /**
+         * The value of a record as routing sees it: the number itself for a
+         * numeric attribute, the code for a nominal one.
+         */
+        public double getEncoded(int attr,int row)
+        {
+            return numeric[attr]!=null?numeric[attr][row]:nominal[attr][row];
+        }
+        public String getValue(int attr,int row)
+        {
+            if(numeric[attr]!=null)
+                return formatNumeric(numeric[attr][row]);
+            else
+                return dictionary.getValue(attr, nominal[attr][row]);
+        }
+        /**
+         * Copies the encoded record into the supplied buffer, which is
+         * returned for convenience.
+         */
+        public double []getRow(int row,double []buffer)
+        {
+            int noa=numeric.length;
+            for(int j=0;j<noa;j++)
+            {
+                if(numeric[j]!=null)
+                    buffer[j]=numeric[j][row];
+                else
+                    buffer[j]=nominal[j][row];
+            }
+            return buffer;
+        }
+        /**
+         * Stores a row given in the encoded form getRow returns.
+         */
+        public void setRow(int row,double []values)
+        {
+            int noa=numeric.length;
+            for(int j=0;j<noa;j++)
+            {
+                if(numeric[j]!=null)
+                    numeric[j][row]=values[j];
+                else
+                    nominal[j][row]=(int)values[j];
+            }
+        }
+        /**
+         * Approximate heap taken by the columns of the batch.
+         */
+        public long getHeapBytes()
+        {
+            long bytes=16L+2*(16L+4L*numeric.length);
+            for(int j=0;j<numeric.length;j++)
+            {
+                if(numeric[j]!=null)
+                    bytes+=16L+8L*numRows;
+                else
+                    bytes+=16L+4L*numRows;
+            }
+            return bytes;
+        }
+        public String []getRecord(int row)
+        {
+            int noa=numeric.length;
+            String []record=new String[noa];
+            for(int j=0;j<noa;j++)
+            {
+                record[j]=getValue(j,row);
+            }
+            return record;
+        }
+        public String [][]toRecords()
+        {
+            String [][]records=new String[numRows][];
+            for(int r=0;r<numRows;r++)
+            {
+                records[r]=getRecord(r);
+            }
+            return records;
+        }
+        /**
+         * Returns a new batch holding the first n of the given rows.
+         */
+        public ColumnarBatch select(int []rows,int n)
+        {
+            ColumnarBatch b=new ColumnarBatch(dictionary,n);
+            int noa=numeric.length;
+            for(int j=0;j<noa;j++)
+            {
+                for(int r=0;r<n;r++)
+                {
+                    if(numeric[j]!=null)
+                        b.numeric[j][r]=numeric[j][rows[r]];
+                    else
+                        b.nominal[j][r]=nominal[j][rows[r]];
+                }
+            }
+            return b;
+        }
+        public static ColumnarBatch concat(AttributeDictionary dictionary,List<ColumnarBatch> parts)
+        {
+            int n=0;
+            for(ColumnarBatch part:parts)
+            {
+                n+=part.numRows;
+            }
+            ColumnarBatch b=new ColumnarBatch(dictionary,n);
+            int noa=dictionary.getNumOfAttrs();
+            int offset=0;
+            for(ColumnarBatch part:parts)
+            {
+                for(int j=0;j<noa;j++)
+                {
+                    if(b.numeric[j]!=null)
+                        System.arraycopy(part.numeric[j], 0, b.numeric[j], offset, part.numRows);
+                    else
+                        System.arraycopy(part.nominal[j], 0, b.nominal[j], offset, part.numRows);
+                }
+                offset+=part.numRows;
+            }
+            return b;
+        }
+        public int countDistinct(int attr)
+        {
+            boolean []seen=new boolean[dictionary.getDomainSize(attr)];
+            int count=0;
+            for(int r=0;r<numRows;r++)
+            {
+                int code=nominal[attr][r];
+                if(!seen[code])
+                {
+                    seen[code]=true;
+                    count++;
+                }
+            }
+            return count;
+        }
+        /**
+         * Writes the batch in binary: the number of rows, then column by
+         * column the doubles of a numeric attribute or the codes of a
+         * nominal one.
+         */
+        public void write(DataOutputStream out) throws IOException
+        {
+            int noa=numeric.length;
+            out.writeInt(numRows);
+            for(int j=0;j<noa;j++)
+            {
+                for(int r=0;r<numRows;r++)
+                {
+                    if(numeric[j]!=null)
+                        out.writeDouble(numeric[j][r]);
+                    else
+                        out.writeInt(nominal[j][r]);
+                }
+            }
+        }
+        public static ColumnarBatch read(DataInputStream in,AttributeDictionary dictionary) throws IOException
+        {
+            ColumnarBatch batch=new ColumnarBatch(dictionary,in.readInt());
+            int noa=batch.getNumOfAttrs();
+            for(int j=0;j<noa;j++)
+            {
+                for(int r=0;r<batch.numRows;r++)
+                {
+                    if(batch.numeric[j]!=null)
+                        batch.numeric[j][r]=in.readDouble();
+                    else
+                        batch.nominal[j][r]=in.readInt();
+                }
+            }
+            return batch;
+        }
+        private static String formatNumeric(double value)
+        {
+            if(Double.isNaN(value))
+                return "?";
+            else
+                return Double.toString(value);
+        }
+    }
+    
+    /**
+     * Builds a ColumnarBatch from parsed instances, one at a time, without
+     * knowing the number of records in advance. The values are taken from
+     * the instances directly, never through their text form. While the
+     * columns fill up it keeps the range of every numeric attribute and the
+     * class distribution, with the class values in the order they first
+     * appear. With intern unset, as for records that are only scored,
+     * unseen nominal values get code -1.
+     */
+    private static class BatchBuilder{
+        private final AttributeDictionary dictionary;
+        private final int classIndex;
+        private final boolean intern;
+        private final double [][]numeric;
+        private final int [][]nominal;
+        private final double []max;
+        private final double []min;
+        private int []classCount=new int[4];
+        private final List<Integer> classOrder=new ArrayList<>();
+        private int size;
+        BatchBuilder(AttributeDictionary dictionary,int classIndex,boolean intern)
+        {
+            this.dictionary=dictionary;
+            this.classIndex=classIndex;
+            this.intern=intern;
+            int noa=dictionary.getNumOfAttrs();
+            numeric=new double[noa][];
+            nominal=new int[noa][];
+            max=new double[noa];
+            min=new double[noa];
+            for(int j=0;j<noa;j++)
+            {
+                max[j]=Double.NEGATIVE_INFINITY;min[j]=Double.POSITIVE_INFINITY;
+                if(dictionary.isNumeric(j))
+                    numeric[j]=new double[64];
+                else
+                    nominal[j]=new int[64];
+            }
+        }
+        public void add(Instance inst)
+        {
+            int noa=numeric.length;
+            if(size==(numeric[0]!=null?numeric[0].length:nominal[0].length))
+            {
+                for(int j=0;j<noa;j++)
+                {
+                    if(numeric[j]!=null)
+                        numeric[j]=Arrays.copyOf(numeric[j], size*2);
+                    else
+                        nominal[j]=Arrays.copyOf(nominal[j], size*2);
+                }
+            }
+            for(int j=0;j<noa;j++)
+            {
+                if(numeric[j]!=null)
+                {
+                    double value=inst.isMissing(j)?Double.NaN:inst.value(j);
+                    numeric[j][size]=value;
+                    if(value>max[j])max[j]=value;
+                    if(value<min[j])min[j]=value;
+                }
+                else
+                {
+                    String value=inst.isMissing(j)?"?":inst.attribute(j).value((int)inst.value(j));
+                    nominal[j][size]=intern?dictionary.intern(j, value):dictionary.getCode(j, value);
+                }
+            }
+            int code=nominal[classIndex][size];
+            if(code>=0)
+            {
+                if(code>=classCount.length)classCount=Arrays.copyOf(classCount, Math.max(code+1, classCount.length*2));
+                if(classCount[code]==0)classOrder.add(code);
+                classCount[code]++;
+            }
+            size++;
+        }
+        public ColumnarBatch build()
+        {
+            int noa=numeric.length;
+            double [][]numericCols=new double[noa][];
+            int [][]nominalCols=new int[noa][];
+            for(int j=0;j<noa;j++)
+            {
+                if(numeric[j]!=null)
+                    numericCols[j]=Arrays.copyOf(numeric[j], size);
+                else
+                    nominalCols[j]=Arrays.copyOf(nominal[j], size);
+            }
+            return new ColumnarBatch(dictionary,size,numericCols,nominalCols);
+        }
+        public double []getMax()
+        {
+            return max.clone();
+        }
+        public double []getMin()
+        {
+            return min.clone();
+        }
+        public String []getClassValues()
+        {
+            String []values=new String[classOrder.size()];
+            for(int i=0;i<values.length;i++)
+            {
+                values[i]=dictionary.getValue(classIndex, classOrder.get(i));
+            }
+            return values;
+        }
+        public int []getClassDistribution()
+        {
+            int []dist=new int[classOrder.size()];
+            for(int i=0;i<dist.length;i++)
+            {
+                dist[i]=classCount[classOrder.get(i)];
+            }
+            return dist;
+        }
+    }
+    
+    /**
+     * Records routed to a leaf, each tagged with the generation (the batch
+     * number of its tree) it arrived in. The buffer can be bounded in two
+     * ways: ageOut drops the records of all but the maxBatches most recent
+     * generations, and a capacity keeps a sample of at most capacity
+     * records of each of those generations, or of all generations together
+     * when they are not aged. A leaf therefore holds up to
+     * maxBatches*capacity records. A bound of 0 is no bound.
+     * Without a capacity the records are references to rows of the batches
+     * they came from. With one, the sampled rows are copied into the leaf in
+     * encoded form, so the leaf keeps no batch alive. The sample of a
+     * generation is made of its records with the smallest random keys, so
+     * it stays uniform over whatever generations are left after ageing.
+     */
+    private static class LeafRecords{
+        private static final int ALL_GENERATIONS=-1;
+        private static final int NO_POOL=Integer.MIN_VALUE;
+        private AttributeDictionary dictionary;
+        private int numOfAttrs;
+        private int capacity;
+        private ColumnarBatch []batchOf;
+        private int []rowOf;
+        private double []rows;
+        private long []keyOf;
+        private int []genOf=new int[0];
+        private int size;
+        private long rngState=1;
+        //cached count and largest key slot of the pool the last row went to
+        private int poolGen=NO_POOL;
+        private int poolCount;
+        private int poolMax;
+        public void add(ColumnarBatch batch,int row,int gen,int maxBatches,int capacity)
+        {
+            if(size==0)
+            {
+                this.capacity=capacity;
+                batchOf=null;
+                rows=null;
+                poolGen=NO_POOL;
+            }
+            if(this.capacity>0)
+                addCopy(batch,row,gen,maxBatches>0?gen:ALL_GENERATIONS);
+            else
+                addReference(batch,row,gen);
+        }
+        private void addReference(ColumnarBatch batch,int row,int gen)
+        {
+            if(batchOf==null)
+            {
+                batchOf=new ColumnarBatch[16];
+                rowOf=new int[16];
+                genOf=new int[16];
+            }
+            if(size==rowOf.length)
+            {
+                batchOf=Arrays.copyOf(batchOf, size*2);
+                rowOf=Arrays.copyOf(rowOf, size*2);
+                genOf=Arrays.copyOf(genOf, size*2);
+            }
+            batchOf[size]=batch;
+            rowOf[size]=row;
+            genOf[size]=gen;
+            size++;
+        }
+        private void addCopy(ColumnarBatch batch,int row,int gen,int pool)
+        {
+            if(rows==null)
+            {
+                dictionary=batch.getDictionary();
+                numOfAttrs=batch.getNumOfAttrs();
+                rows=new double[16*numOfAttrs];
+                keyOf=new long[16];
+                genOf=new int[16];
+            }
+            long key=nextKey();
+            if(poolGen!=pool)findPool(pool);
+            if(poolCount<capacity)
+            {
+                if(size==keyOf.length)
+                {
+                    rows=Arrays.copyOf(rows, size*2*numOfAttrs);
+                    keyOf=Arrays.copyOf(keyOf, size*2);
+                    genOf=Arrays.copyOf(genOf, size*2);
+                }
+                copyRow(size,batch,row,gen,key);
+                if(poolCount==0 || key>keyOf[poolMax])poolMax=size;
+                poolCount++;
+                size++;
+            }
+            else if(key<keyOf[poolMax])
+            {
+                //the new record takes the place of the largest key in its pool
+                copyRow(poolMax,batch,row,gen,key);
+                findPool(pool);
+            }
+        }
+        private void copyRow(int slot,ColumnarBatch batch,int row,int gen,long key)
+        {
+            int offset=slot*numOfAttrs;
+            for(int j=0;j<numOfAttrs;j++)
+            {
+                rows[offset+j]=batch.getEncoded(j, row);
+            }
+            keyOf[slot]=key;
+            genOf[slot]=gen;
+        }
+        private void findPool(int pool)
+        {
+            poolGen=pool;
+            poolCount=0;
+            poolMax=-1;
+            for(int i=0;i<size;i++)
+            {
+                if(pool==ALL_GENERATIONS || genOf[i]==pool)
+                {
+                    poolCount++;
+                    if(poolMax<0 || keyOf[i]>keyOf[poolMax])poolMax=i;
+                }
+            }
+        }
+        /**
+         * Next key of a SplitMix64 sequence, kept to 63 bits so keys compare
+         * as signed longs.
+         */
+        private long nextKey()
+        {
+            long z=(rngState+=0x9E3779B97F4A7C15L);
+            z=(z^(z>>>30))*0xBF58476D1CE4E5B9L;
+            z=(z^(z>>>27))*0x94D049BB133111EBL;
+            return (z^(z>>>31))>>>1;
+        }
+        /**
+         * Drops the records that are not from one of the maxBatches most
+         * recent generations, current included.
+         */
+        public void ageOut(int current,int maxBatches)
+        {
+            if(maxBatches<=0 || size==0)
+                return;
+            int oldest=current-maxBatches;
+            int n=0;
+            for(int i=0;i<size;i++)
+            {
+                if(genOf[i]>oldest)
+                {
+                    if(i!=n)
+                    {
+                        if(rows!=null)
+                        {
+                            System.arraycopy(rows, i*numOfAttrs, rows, n*numOfAttrs, numOfAttrs);
+                            keyOf[n]=keyOf[i];
+                        }
+                        else
+                        {
+                            batchOf[n]=batchOf[i];
+                            rowOf[n]=rowOf[i];
+                        }
+                        genOf[n]=genOf[i];
+                    }
+                    n++;
+                }
+            }
+            if(batchOf!=null)Arrays.fill(batchOf, n, size, null);
+            size=n;
+            poolGen=NO_POOL;
+        }
+        public int size()
+        {
+            return size;
+        }
+        /**
+         * Approximate heap taken by the buffer together with the batches it
+         * references that are not in counted yet. The batches are added to
+         * counted, so that a batch shared by several leaves is counted once.
+         */
+        public long getBufferBytes(Set<ColumnarBatch> counted)
+        {
+            long bytes=16L+16L+4L*genOf.length;
+            if(rows!=null)
+            {
+                bytes+=16L+8L*rows.length+16L+8L*keyOf.length;
+            }
+            else if(batchOf!=null)
+            {
+                bytes+=16L+4L*batchOf.length+16L+4L*rowOf.length;
+                for(int i=0;i<size;i++)
+                {
+                    if(counted.add(batchOf[i]))bytes+=batchOf[i].getHeapBytes();
+                }
+            }
+            return bytes;
+        }
+        /**
+         * The number of distinct batches the buffer keeps alive.
+         */
+        public int getNumBatches()
+        {
+            Set<ColumnarBatch> batches=Collections.newSetFromMap(new IdentityHashMap<ColumnarBatch,Boolean>());
+            for(int i=0;batchOf!=null && i<size;i++)
+            {
+                batches.add(batchOf[i]);
+            }
+            return batches.size();
+        }
+        public void write(CheckpointWriter w) throws IOException
+        {
+            DataOutputStream out=w.out();
+            out.writeInt(size);
+            out.writeInt(capacity);
+            out.writeBoolean(rows!=null);
+            if(rows!=null)
+            {
+                out.writeInt(numOfAttrs);
+                for(int i=0;i<size;i++)
+                {
+                    out.writeLong(keyOf[i]);
+                    out.writeInt(genOf[i]);
+                    for(int j=0;j<numOfAttrs;j++)
+                    {
+                        out.writeDouble(rows[i*numOfAttrs+j]);
+                    }
+                }
+            }
+            else
+            {
+                for(int i=0;i<size;i++)
+                {
+                    out.writeInt(w.batchId(batchOf[i]));
+                    out.writeInt(rowOf[i]);
+                    out.writeInt(genOf[i]);
+                }
+            }
+            out.writeLong(rngState);
+        }
+        public static LeafRecords read(CheckpointReader r) throws IOException
+        {
+            DataInputStream in=r.in();
+            LeafRecords records=new LeafRecords();
+            int n=in.readInt();
+            records.capacity=in.readInt();
+            int length=Math.max(n,16);
+            records.genOf=new int[length];
+            if(in.readBoolean())
+            {
+                int noa=in.readInt();
+                records.dictionary=r.getDictionary();
+                records.numOfAttrs=noa;
+                records.rows=new double[length*noa];
+                records.keyOf=new long[length];
+                for(int i=0;i<n;i++)
+                {
+                    records.keyOf[i]=in.readLong();
+                    records.genOf[i]=in.readInt();
+                    for(int j=0;j<noa;j++)
+                    {
+                        records.rows[i*noa+j]=in.readDouble();
+                    }
+                }
+            }
+            else if(n>0)
+            {
+                records.batchOf=new ColumnarBatch[length];
+                records.rowOf=new int[length];
+                for(int i=0;i<n;i++)
+                {
+                    records.batchOf[i]=r.batch(in.readInt());
+                    records.rowOf[i]=in.readInt();
+                    records.genOf[i]=in.readInt();
+                }
+            }
+            records.size=n;
+            records.rngState=in.readLong();
+            return records;
+        }
+        /**
+         * Slots of the sampled copies, ordered by generation.
+         */
+        private int []sampleSlots()
+        {
+            Integer []order=new Integer[size];
+            for(int i=0;i<size;i++)
+            {
+                order[i]=i;
+            }
+            Arrays.sort(order, (a,b) -> genOf[a]!=genOf[b]?Integer.compare(genOf[a], genOf[b]):Integer.compare(a, b));
+            int []slots=new int[size];
+            for(int i=0;i<size;i++)
+            {
+                slots[i]=order[i];
+            }
+            return slots;
+        }
+        /**
+         * Generations of the records, in the order toBatch returns them.
+         */
+        public int []getGenerations()
+        {
+            if(rows==null)
+                return Arrays.copyOf(genOf, size);
+            int []slots=sampleSlots();
+            int []gens=new int[slots.length];
+            for(int i=0;i<slots.length;i++)
+            {
+                gens[i]=genOf[slots[i]];
+            }
+            return gens;
+        }
+        /**
+         * Gathers the records into a single batch, or returns null if no
+         * record has been added.
+         */
+        public ColumnarBatch toBatch()
+        {
+            if(size==0)
+                return null;
+            if(rows!=null)
+            {
+                int []slots=sampleSlots();
+                ColumnarBatch b=new ColumnarBatch(dictionary,slots.length);
+                double []row=new double[numOfAttrs];
+                for(int i=0;i<slots.length;i++)
+                {
+                    System.arraycopy(rows, slots[i]*numOfAttrs, row, 0, numOfAttrs);
+                    b.setRow(i, row);
+                }
+                return b;
+            }
+            List<ColumnarBatch> parts=new ArrayList<>();
+            int start=0;
+            for(int i=1;i<=size;i++)
+            {
+                if(i==size || batchOf[i]!=batchOf[start])
+                {
+                    parts.add(batchOf[start].select(Arrays.copyOfRange(rowOf, start, i), i-start));
+                    start=i;
+                }
+            }
+            if(parts.size()==1)
+                return parts.get(0);
+            return ColumnarBatch.concat(batchOf[0].getDictionary(), parts);
+        }
+    }
+    
+    /**
+     * Ring buffer of the parsed batches in the sliding window. With spill
+     * set, every batch but the latest is written to a temporary file in a
+     * compact binary form (numeric columns as doubles, nominal columns as
+     * dictionary codes) and read back when the window is gathered.
+     */
+    private static class BatchWindow{
+        private final int capacity;
+        private final boolean spill;
+        private final ColumnarBatch []batches;
+        private final File []spilled;
+        private int first;
+        private int size;
+        BatchWindow(int capacity,boolean spill)
+        {
+            this.capacity=capacity;
+            this.spill=spill;
+            this.batches=new ColumnarBatch[capacity];
+            this.spilled=new File[capacity];
+        }
+        public void add(ColumnarBatch batch)
+        {
+            if(size==capacity)
+            {
+                release(first);
+                first=(first+1)%capacity;
+                size--;
+            }
+            if(spill && size>0)
+            {
+                int latest=(first+size-1)%capacity;
+                spilled[latest]=writeBatch(batches[latest]);
+                batches[latest]=null;
+            }
+            batches[(first+size)%capacity]=batch;
+            size++;
+        }
+        public void clear()
+        {
+            for(int i=0;i<size;i++)
+            {
+                release((first+i)%capacity);
+            }
+            first=0;
+            size=0;
+        }
+        public int size()
+        {
+            return size;
+        }
+        public boolean isSpill()
+        {
+            return spill;
+        }
+        /**
+         * The batches of the window, oldest first. Spilled batches are read
+         * back from their files.
+         */
+        public List<ColumnarBatch> getBatches(AttributeDictionary dictionary)
+        {
+            List<ColumnarBatch> parts=new ArrayList<>(size);
+            for(int i=0;i<size;i++)
+            {
+                int slot=(first+i)%capacity;
+                parts.add(batches[slot]!=null?batches[slot]:readBatch(spilled[slot],dictionary));
+            }
+            return parts;
+        }
+        /**
+         * All the records of the window, oldest batch first.
+         */
+        public ColumnarBatch toBatch(AttributeDictionary dictionary)
+        {
+            List<ColumnarBatch> parts=getBatches(dictionary);
+            if(parts.size()==1)
+                return parts.get(0);
+            return ColumnarBatch.concat(dictionary, parts);
+        }
+        private void release(int slot)
+        {
+            batches[slot]=null;
+            if(spilled[slot]!=null)
+            {
+                spilled[slot].delete();
+                spilled[slot]=null;
+            }
+        }
+        private static File writeBatch(ColumnarBatch batch)
+        {
+            try{
+                File file=File.createTempFile("adf-window", ".bin");
+                file.deleteOnExit();
+                try(DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
+                {
+                    batch.write(out);
+                }
+                return file;
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException("Cannot spill a window batch", e);
+            }
+        }
+        private static ColumnarBatch readBatch(File file,AttributeDictionary dictionary)
+        {
+            try(DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+            {
+                return ColumnarBatch.read(in,dictionary);
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException("Cannot read a spilled window batch", e);
+            }
+        }
+    }
+    
+    /**
+     * Writes the binary checkpoint of an ADFLearner. The model is written
+     * first to a buffer, collecting every batch it refers to, so the batches
+     * can be stored once each and ahead of the model. The file holds a magic
+     * number, the format version, the payload length, the CRC32 of the
+     * payload and the payload: the dictionary, the batches and the model.
+     */
+    private static class CheckpointWriter{
+        static final int MAGIC=0x41444643;
+        static final int VERSION=3;
+        private final ByteArrayOutputStream model=new ByteArrayOutputStream();
+        private final DataOutputStream out=new DataOutputStream(model);
+        private final Map<ColumnarBatch,Integer> batchIds=new IdentityHashMap<>();
+        private final List<ColumnarBatch> batches=new ArrayList<>();
+        public DataOutputStream out()
+        {
+            return out;
+        }
+        /**
+         * The position of batch in the batch table, adding it if needed.
+         */
+        public int batchId(ColumnarBatch batch)
+        {
+            Integer id=batchIds.get(batch);
+            if(id==null)
+            {
+                id=batches.size();
+                batches.add(batch);
+                batchIds.put(batch, id);
             }
-            return oldCV.toArray(new String[oldCV.size()]);
+            return id;
         }
-        private static int getNumNewCV()
+        public void writeString(String value) throws IOException
         {
-            return numnewcv;
+            out.writeBoolean(value!=null);
+            if(value!=null)out.writeUTF(value);
         }
-        private static int []updateClassDistribution(String []TCV,
-                String []OCV,int []odist, String []NCV, int []ndist)
+        public void writeStrings(String []values) throws IOException
         {
-            int tl=TCV.length;
-            int ol=OCV.length;
-            int nl=NCV.length;
-            int []tdist=new int[tl];
-            
-            for(int i=0;i<tl;i++)
-            {
-//               tdist[i]=0;
-               int index=getCVIndex(OCV,TCV[i]);
-               if(index>=0)tdist[i]+=odist[index];
-               index=getCVIndex(NCV,TCV[i]);
-               if(index>=0)tdist[i]+=ndist[index];
-            }                        
-            return tdist.clone();
+            out.writeInt(values==null?-1:values.length);
+            if(values!=null)
+                for(String value:values)writeString(value);
         }
-        private static void updateClassDistribution(String []OCV,int []odist, String []NCV, int []ndist)
+        public void writeInts(int []values) throws IOException
         {
-            int nl=NCV.length;
-            for(int i=0;i<nl;i++)
+            out.writeInt(values==null?-1:values.length);
+            if(values!=null)
+                for(int value:values)out.writeInt(value);
+        }
+        public void writeDoubles(double []values) throws IOException
+        {
+            out.writeInt(values==null?-1:values.length);
+            if(values!=null)
+                for(double value:values)out.writeDouble(value);
+        }
+        /**
+         * Writes the checkpoint next to file and then moves it in place, so
+         * a reader never sees a partly written checkpoint.
+         */
+        public void save(File file,AttributeDictionary dictionary) throws IOException
+        {
+            out.flush();
+            ByteArrayOutputStream payload=new ByteArrayOutputStream(model.size()+1024);
+            DataOutputStream pout=new DataOutputStream(payload);
+            pout.writeBoolean(dictionary!=null);
+            if(dictionary!=null)
             {
-               int index=getCVIndex(OCV,NCV[i]);
-               if(index>=0)ndist[i]+=odist[index];
-            }  
-
-            int maxIndex=0;
-            int total=ndist[0];
-            for(int i=1;i<nl;i++)
+                CheckpointWriter dw=new CheckpointWriter();
+                dictionary.write(dw);
+                dw.out.flush();
+                dw.model.writeTo(pout);
+            }
+            pout.writeInt(batches.size());
+            for(ColumnarBatch batch:batches)
             {
-                total+=ndist[i];
-                if(ndist[i]>ndist[maxIndex])
-                    maxIndex=i;
+                batch.write(pout);
             }
-            majorityCV=NCV[maxIndex];            
-            //confidence
-            confidence=(double)ndist[maxIndex]/(double)total;
-        }
-        private static void updateClassDistribution(String []NCV, int []ndist)
-        {
-            int nl=NCV.length;            
-            int maxIndex=0;
-            int total=ndist[0];
-            for(int i=1;i<nl;i++)
+            pout.flush();
+            model.writeTo(payload);
+            CRC32 crc=new CRC32();
+            crc.update(payload.toByteArray());
+            File tmp=new File(file.getAbsolutePath()+".tmp");
+            try(DataOutputStream fout=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
             {
-                total+=ndist[i];
-                if(ndist[i]>ndist[maxIndex])
-                    maxIndex=i;
+                fout.writeInt(MAGIC);
+                fout.writeInt(VERSION);
+                fout.writeLong(payload.size());
+                fout.writeLong(crc.getValue());
+                payload.writeTo(fout);
             }
-            majorityCV=NCV[maxIndex];            
-            //confidence
-            confidence=(double)ndist[maxIndex]/(double)total;
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         }
-        private static void calculateConfidence( String []NCV, int []ndist)
+    }
+    
+    /**
+     * Reads a checkpoint written by CheckpointWriter. The header and the
+     * checksum are verified before anything is restored.
+     */
+    private static class CheckpointReader{
+        private final DataInputStream in;
+        private final AttributeDictionary dictionary;
+        private final ColumnarBatch []batches;
+        private CheckpointReader(byte []payload) throws IOException
         {
-            int nl=NCV.length;
-            int maxIndex=0;
-            int total=ndist[0];
-            for(int i=1;i<nl;i++)
+            in=new DataInputStream(new ByteArrayInputStream(payload));
+            dictionary=in.readBoolean()?AttributeDictionary.read(this):null;
+            batches=new ColumnarBatch[in.readInt()];
+            for(int i=0;i<batches.length;i++)
             {
-                total+=ndist[i];
-                if(ndist[i]>ndist[maxIndex])
-                    maxIndex=i;
+                batches[i]=ColumnarBatch.read(in, dictionary);
             }
-            majorityCV=NCV[maxIndex];            
-            //confidence
-            confidence=(double)ndist[maxIndex]/(double)total;
-        }    
-        private static String findMajorityClassValue(String []NCV, int []ndist)
+        }
+        public static CheckpointReader open(File file) throws IOException
         {
-            int nl=NCV.length;
-            int maxIndex=0;
-            for(int i=1;i<nl;i++)
+            byte []payload;
+            long checksum;
+            try(DataInputStream fin=new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
             {
-                if(ndist[i]>ndist[maxIndex])
-                    maxIndex=i;
+                if(fin.readInt()!=CheckpointWriter.MAGIC)
+                    throw new IOException(file+" is not an ADF checkpoint");
+                int version=fin.readInt();
+                if(version!=CheckpointWriter.VERSION)
+                    throw new IOException("Unsupported checkpoint version "+version+" in "+file);
+                long length=fin.readLong();
+                checksum=fin.readLong();
+                if(length<0 || length>Integer.MAX_VALUE)
+                    throw new IOException("Invalid checkpoint length in "+file);
+                payload=new byte[(int)length];
+                fin.readFully(payload);
             }
-            return NCV[maxIndex];            
+            CRC32 crc=new CRC32();
+            crc.update(payload);
+            if(crc.getValue()!=checksum)
+                throw new IOException("Checksum mismatch in "+file);
+            return new CheckpointReader(payload);
         }
-        private static double getConfidence()
+        public DataInputStream in()
         {
-            return confidence;
+            return in;
         }
-        private static String getMajorityCV()
+        public AttributeDictionary getDictionary()
         {
-            return majorityCV;
+            return dictionary;
         }
-        private static int getCVIndex(String []values, String cv)
+        public ColumnarBatch batch(int id) throws IOException
         {
-            int index=-1;
-            int l=values.length;
-            for(int i=0;i<l;i++)
-            {
-                if(values[i].equals(cv))
-                {
-                    index=i;break;
-                }
-            }
-            return index;
+            if(id<0 || id>=batches.length)
+                throw new IOException("Invalid batch reference "+id);
+            return batches[id];
         }
-        private static int findArrayIndex(int []leafIDs, int leafIndex)
+        public String readString() throws IOException
         {
-            int index=-1;
-            int l=leafIDs.length;
-            for(int i=0;i<l;i++)
-            {
-                if(leafIDs[i]==leafIndex)
-                {
-                    index=i;break;
-                }
-            }
-            return index;
+            return in.readBoolean()?in.readUTF():null;
+        }
+        public String []readStrings() throws IOException
+        {
+            int n=in.readInt();
+            if(n<0)return null;
+            String []values=new String[n];
+            for(int i=0;i<n;i++)values[i]=readString();
+            return values;
+        }
+        public int []readInts() throws IOException
+        {
+            int n=in.readInt();
+            if(n<0)return null;
+            int []values=new int[n];
+            for(int i=0;i<n;i++)values[i]=in.readInt();
+            return values;
+        }
+        public double []readDoubles() throws IOException
+        {
+            int n=in.readInt();
+            if(n<0)return null;
+            double []values=new double[n];
+            for(int i=0;i<n;i++)values[i]=in.readDouble();
+            return values;
         }
     }
     
-    
     private static class DatasetStats{
        private int numRecords;
        private int numAttr;
-       private String [][]data;
+       private ColumnarBatch data;
        private String []classValues;
        private int []classDist;
        private int classIndex;
        private double []Max;
        private double []Min;
-       ArffFileStream dataFile;
+       InstanceStream dataFile;
        private String []attrNames;
        private int []attrType;
        private String dsName;
+       private AttributeDictionary dictionary;
+       private weka.core.Instances wekaInstances;
        public DatasetStats()
        {
            
        }
-       public DatasetStats(ArffFileStream dataFile,String dsName,String []attrNames,int []attrType,String [][]data,int classIndex)
+       public DatasetStats(InstanceStream dataFile,String dsName,String []attrNames,int []attrType,
+               AttributeDictionary dictionary,String [][]data,int classIndex)
        {
            this.dataFile=dataFile;
+           this.dictionary=dictionary;
            this.dsName=dsName;
            this.attrNames=attrNames;
            this.attrType=attrType;
-           this.data=data;
+           this.data=new ColumnarBatch(dictionary,data);
            this.classIndex=classIndex;
            this.numRecords=data.length;
            this.numAttr=attrType.length;
            findDatasetStats();
        }
+       public DatasetStats(InstanceStream dataFile,String dsName,String []attrNames,int []attrType,
+               ColumnarBatch data,int classIndex)
+       {
+           this.dataFile=dataFile;
+           this.dictionary=data.getDictionary();
+           this.dsName=dsName;
+           this.attrNames=attrNames;
+           this.attrType=attrType;
+           this.data=data;
+           this.classIndex=classIndex;
+           this.numRecords=data.getNumRows();
+           this.numAttr=attrType.length;
+           findDatasetStats();
+       }
        private void findDatasetStats()
        {
-           classValues=ForestFunctions.findDomainValues(data, classIndex);
            Max=new double[numAttr];
            Min=new double[numAttr];
-           for(int i=0;i<numAttr;i++)
-           {Max[i]=Double.NEGATIVE_INFINITY;Min[i]=Double.POSITIVE_INFINITY;}
-           int numcv=classValues.length;
-           classDist=new int[numcv];
-           for(int i=0;i<numcv;i++)
-           {classDist[i]=0;}
-           
-           for(int i=0;i<numRecords;i++)
+           for(int j=0;j<numAttr;j++)
            {
-               for(int j=0;j<numAttr;j++)
+               Max[j]=Double.NEGATIVE_INFINITY;Min[j]=Double.POSITIVE_INFINITY;
+               if(attrType[j]==1)
                {
-                   if(attrType[j]==1)
-                    {
-                        double cval=Double.parseDouble(data[i][j]);
+                   double []column=data.getNumericColumn(j);
+                   for(int i=0;i<numRecords;i++)
+                   {
+                        double cval=column[i];
                         if(cval>Max[j])Max[j]=cval;
                         if(cval<Min[j])Min[j]=cval;
-                    }
-                    else
-                    {
-                        if(j==classIndex)
-                        {
-                            int cvi=0;
-                            for(int k=0;k<numcv;k++)
-                            {
-                                if(classValues[k].equals(data[i][j]))
-                                {
-                                    cvi=k;break;
-                                }
-                            }
-                            classDist[cvi]++;                            
-                        }
-
-                    }
+                   }
+               }
+           }
+           //class values are kept in the order they first appear in the batch
+           int []column=data.getNominalColumn(classIndex);
+           int []codeCount=new int[dictionary.getDomainSize(classIndex)];
+           int []firstSeen=new int[codeCount.length];
+           int numcv=0;
+           for(int i=0;i<numRecords;i++)
+           {
+               int code=column[i];
+               if(codeCount[code]==0)
+               {
+                   firstSeen[numcv++]=code;
                }
-           }            
+               codeCount[code]++;
+           }
+           classValues=new String[numcv];
+           classDist=new int[numcv];
+           for(int i=0;i<numcv;i++)
+           {
+               classValues[i]=dictionary.getValue(classIndex, firstSeen[i]);
+               classDist[i]=codeCount[firstSeen[i]];
+           }
        }
        
        
-       public void processARFFDataFile(ArffFileStream ARFFdataFile)
+       public void processARFFDataFile(InstanceStream ARFFdataFile)
        {
            calculateDatasetStats(ARFFdataFile);
        }
        
-       public void calculateDatasetStats(ArffFileStream ARFFdataFile)
+       /**
+        * Reads a batch from a stream of parsed instances in one pass: the
+        * attributes are taken from the stream header, and the columns, the
+        * numeric ranges and the class distribution are filled in as the
+        * instances arrive. Any InstanceStream can be used, so a producer
+        * that holds the instances in memory does not need an ARFF file.
+        */
+       public void calculateDatasetStats(InstanceStream stream)
        {
-           this.dataFile=ARFFdataFile;     
-           this.dsName=ARFFdataFile.getHeader().getRelationName();
-           this.classIndex=ARFFdataFile.getHeader().classIndex();
-           if (ARFFdataFile.hasMoreInstances()) 
+           InstancesHeader header=stream.getHeader();
+           this.dataFile=stream;
+           this.dsName=header.getRelationName();
+           this.classIndex=header.classIndex();
+           this.numAttr=header.numAttributes();
+           this.attrType=new int[this.numAttr];
+           this.attrNames=new String[this.numAttr];
+           for(int i=0;i<this.numAttr;i++)
            {
-            Instance Inst = ARFFdataFile.nextInstance().getData();
-            this.numAttr=Inst.numAttributes();
-            this.attrType=new int[this.numAttr];
-            this.attrNames=new String[this.numAttr];
-            for(int i=0;i<this.numAttr;i++)
-                {
-                    if(i==this.classIndex)
-                         this.attrType[i]=2;
-                    else if(Inst.attribute(i).isNumeric())
-                         this.attrType[i]=1;
-                    else 
-                         this.attrType[i]=0;
-                    this.attrNames[i]=Inst.attribute(i).name();
-                }
-            }
-
-           
-           Max=new double[numAttr];
-           Min=new double[numAttr];
-           String []tdata=CountRecords();
-           numRecords=tdata.length;           
-           data=new String[numRecords][numAttr];
-           dataFile.restart();
-           for(int i=0;i<numAttr;i++)
-           {Max[i]=Double.NEGATIVE_INFINITY;Min[i]=Double.POSITIVE_INFINITY;}
-           int numcv=classValues.length;
-           classDist=new int[numcv];
-           for(int i=0;i<numcv;i++)
-           {classDist[i]=0;}
-           
-           for(int i=0;i<numRecords;i++)
+               if(i==this.classIndex)
+                    this.attrType[i]=2;
+               else if(header.attribute(i).isNumeric())
+                    this.attrType[i]=1;
+               else 
+                    this.attrType[i]=0;
+               this.attrNames[i]=header.attribute(i).name();
+           }
+           if(this.dictionary==null || this.dictionary.getNumOfAttrs()!=this.numAttr)
            {
-               String []t=tdata[i].split(",");
-               for(int j=0;j<numAttr;j++)
-               {
-                   data[i][j]=t[j];
-                   if(attrType[j]==1)
-                    {
-                        double cval=Double.parseDouble(t[j]);
-                        if(cval>Max[j])Max[j]=cval;
-                        if(cval<Min[j])Min[j]=cval;
-                    }
-                    else
-                    {
-                        if(j==classIndex)
-                        {
-                            int cvi=0;
-                            for(int k=0;k<numcv;k++)
-                            {
-                                if(classValues[k].equals(t[j]))
-                                {
-                                    cvi=k;break;
-                                }
-                            }
-                            classDist[cvi]++;                            
-                        }
-
-                    }
-               }
-           }            
-       }
-       private String[] CountRecords()
-       {
-           dataFile.restart();
-           List<String> domainValues = new ArrayList<>();
-           List<String> tmpdata= new ArrayList<>();
-           while(dataFile.hasMoreInstances())
+               this.dictionary=new AttributeDictionary(this.attrType);
+           }
+           BatchBuilder builder=new BatchBuilder(dictionary,classIndex,true);
+           while(stream.hasMoreInstances())
            {
-               Instance inst=dataFile.nextInstance().getData();               
-               String s=inst.toString();
-               tmpdata.add(s);
-               String []tData=s.split(",");       
-               if(!domainValues.contains(tData[classIndex]))
-               {
-                    domainValues.add(tData[classIndex]);
-               }                    
+               builder.add(stream.nextInstance().getData());
            }
-           classValues=domainValues.toArray(new String[domainValues.size()]);
-           return tmpdata.toArray(new String[tmpdata.size()]);
+           data=builder.build();
+           numRecords=data.getNumRows();
+           Max=builder.getMax();
+           Min=builder.getMin();
+           classValues=builder.getClassValues();
+           classDist=builder.getClassDistribution();
+           wekaInstances=null;
        }
        public int getNumRecords()
        {
@@ -2079,9 +5201,24 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
        {
            return classValues.clone();
        }
-       public String[][] getData()
+       public ColumnarBatch getBatch()
        {
-           return data.clone();
+           return data;
+       }
+       /**
+        * The records as WEKA instances, created on first use and then shared
+        * by every forest and subtree built on this batch. The learners copy
+        * the instances they change, so the set is only read. Synchronized,
+        * because with concurrent updates PF and AF/TF may ask for it first
+        * at the same time.
+        */
+       public synchronized weka.core.Instances getWekaInstances()
+       {
+           if(wekaInstances==null)
+           {
+               wekaInstances=ForestFunctions.createWekaInstances(dsName,attrNames,attrType,data);
+           }
+           return wekaInstances;
        }
        public int[] getClassDistribution()
        {
@@ -2092,6 +5229,10 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         {
             return this.dsName;
         }
+       public AttributeDictionary getDictionary()
+        {
+            return this.dictionary;
+        }
       public int getClassIndex()
         {
             return classIndex;
@@ -2110,25 +5251,150 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             return numAttr;
         }      
    }  
+    /**
+     * Package-private entry points into the hot paths of a batch update, for
+     * the JMH benchmarks in the benchmarks module. Batches and forests are
+     * handed out as opaque handles. All batches share one dictionary, as
+     * they do inside an ADFLearner.
+     */
+    static final class BenchmarkAccess{
+        private final AdaptiveDecisionForest adf;
+        private final String dsName;
+        private final String []attrNames;
+        private final int []attrType;
+        private final int classIndex;
+        private final AttributeDictionary dictionary;
+        BenchmarkAccess(AdaptiveDecisionForest adf,String dsName,String []attrNames,int []attrType,int classIndex)
+        {
+            this.adf=adf;
+            this.dsName=dsName;
+            this.attrNames=attrNames.clone();
+            this.attrType=attrType.clone();
+            this.classIndex=classIndex;
+            this.dictionary=new AttributeDictionary(attrType);
+            adf.prepareForUse();
+        }
+        /**
+         * Parses records into the batch statistics ADFLearner works on.
+         */
+        Object batch(String [][]records)
+        {
+            return new DatasetStats(null,dsName,attrNames,attrType,dictionary,records,classIndex);
+        }
+        /**
+         * Builds a forest on a batch with the leaf statistics set, as the PF
+         * is built on the first batch.
+         */
+        Object buildForest(Object batch,int numTrees)
+        {
+            DatasetStats dss=(DatasetStats)batch;
+            Forest forest=adf.new Forest();
+            forest.buildForest(dss, numTrees, adf.minRecords, adf.method);
+            forest.setClassValues(dss.getClassValues());
+            return forest;
+        }
+        /**
+         * Trains an HT forest on a batch, without turning it into a Forest.
+         */
+        Object buildForestHT(Object batch,int numTrees)
+        {
+            return ForestFunctions.buildClassifier(3, ((DatasetStats)batch).getWekaInstances(), numTrees,
+                    adf.minRecords, adf.randomSeed, adf.buildThreads);
+        }
+        /**
+         * Routes every record of a batch through the forest and returns the
+         * number of records predicted correctly.
+         */
+        int route(Object forest,Object batch)
+        {
+            ColumnarBatch data=((DatasetStats)batch).getBatch();
+            int []classIds=((Forest)forest).predictBatch(data, new int[data.getNumRows()], null);
+            int correct=0;
+            for(int r=0;r<classIds.length;r++)
+            {
+                if(classIds[r]==data.getCode(classIndex, r))correct++;
+            }
+            return correct;
+        }
+        void updateLeafStats(Object forest,Object batch)
+        {
+            for(Tree tree:((Forest)forest).getForest())
+            {
+                tree.updateLeafStats((DatasetStats)batch, false);
+            }
+        }
+        int identifyPerturbedLeaves(Object forest,Object batch)
+        {
+            int total=0;
+            for(Tree tree:((Forest)forest).getForest())
+            {
+                total+=tree.identifyPerturbedLeaves((DatasetStats)batch, adf.errorTolerance);
+            }
+            return total;
+        }
+        /**
+         * Repairs every tree of the forest with a batch, as repairForest does
+         * for a repairable forest.
+         */
+        void expandForestByISAT(Object forest,Object batch)
+        {
+            Forest F=(Forest)forest;
+            DatasetStats d=(DatasetStats)batch;
+            List<Tree> trees=F.getForest();
+            int []treePerturbed=new int[trees.size()];
+            for(int i=0;i<treePerturbed.length;i++)
+            {
+                treePerturbed[i]=trees.get(i).identifyPerturbedLeaves(d, adf.errorTolerance);
+            }
+            String []fClassValues=F.getClassValues();
+            int ncv=ClassObserver.updateClassValues(fClassValues, d.getClassValues()).length-fClassValues.length;
+            F.setClassValues(d.getClassValues());
+            ISAT isat=adf.new ISAT();
+            isat.expandForestByISAT(F, d, null, adf.minRecords, adf.method, classIndex, treePerturbed, ncv);
+        }
+    }
+    
    private static class ForestFunctions {
 
     final String newline = "\n";
     
-    private static String buildClassifier(int method,ArffFileStream trainArffs, int numTrees,int leafSize)
+    private static ForestModel buildClassifier(int method,weka.core.Instances trainData, int numTrees,int leafSize,int seed,int threads)
     {
         if(method==1 || method==2)
         {
-            return buildWekaForest(method,trainArffs,numTrees,leafSize);
+            return buildWekaForest(method,trainData,numTrees,leafSize,threads);
         }
         else{
-            return buildForestHT(trainArffs,numTrees,leafSize);
+            WekaToSamoaInstanceConverter instanceConverter=new WekaToSamoaInstanceConverter();
+            CachedInstancesStream trainStream=new CachedInstancesStream(instanceConverter.samoaInstances(trainData));
+            return buildForestHT(trainStream,numTrees,leafSize,seed,threads);
+        }
+    }
+    
+    /**
+     * Trains the WEKA forest and hands its trees over as nodes. The model
+     * text is only parsed when the trees cannot be walked directly (SysFor).
+     */
+    private static ForestModel buildWekaForest(int method,weka.core.Instances instancesBuffer, int numTrees,int leafSize,int threads)
+    {
+        Classifier classifier=trainWekaForest(method,instancesBuffer,numTrees,leafSize,threads);
+        if(classifier==null)
+        {
+            return new ForestModel(null,"");
+        }
+        List<Node> roots=ModelConverter.convertWekaForest(classifier);
+        if(roots!=null)
+        {
+            return new ForestModel(roots,null);
         }
+        String tree=classifier.toString();
+        if(method==2)tree=preprocessTree(tree);
+        return new ForestModel(null,tree);
     }
     
-    private static String buildWekaForest(int method,ArffFileStream trainArffs, int numTrees,int leafSize)
+    private static Classifier trainWekaForest(int method,weka.core.Instances instancesBuffer, int numTrees,int leafSize,int threads)
     {
         WEKAClassOption wekaLearnerOption;
-        weka.core.Instances instancesBuffer=null;
         if(method==1)
         {
             wekaLearnerOption= new WEKAClassOption("baseLearner", 'T',
@@ -2139,10 +5405,7 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                 "Classifier to train.", weka.classifiers.Classifier.class, "weka.classifiers.trees.RandomForest -P 100 -print -I 1 -num-slots 1 -K 0 -M 2 -V 0.001 -S 1");  
         }    
         Classifier classifier;
-        SamoaToWekaInstanceConverter instanceConverter;
-        String tree="";
         try{
-            instanceConverter = new SamoaToWekaInstanceConverter();
             String[] options = weka.core.Utils.splitOptions(wekaLearnerOption.getValueAsCLIString());
             String classifierName = options[0];
             String[] newoptions = options.clone();
@@ -2150,6 +5413,7 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             if(classifierName.equals("weka.classifiers.trees.RandomForest"))
             {
                 newoptions[5] = numTrees+"";
+                newoptions[7] = threads+"";
                 newoptions[11] = leafSize+"";                
             }
             else if(classifierName.equals("weka.classifiers.trees.SysFor"))
@@ -2158,35 +5422,44 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                 newoptions[4] = numTrees+"";
             }            
             classifier = weka.classifiers.AbstractClassifier.forName(classifierName, newoptions);
-            int bflag=0;
-            while (trainArffs.hasMoreInstances()) {
-                   Instance trainInst = trainArffs.nextInstance().getData();
-                   weka.core.Instance inst= instanceConverter.wekaInstance(trainInst);
-                   if(bflag==0)
-                   {
-                       instancesBuffer = new weka.core.Instances(inst.dataset());
-                       bflag=1;
-                   }
-                   instancesBuffer.add(inst);
-                 }
-           weka.classifiers.Classifier auxclassifier = weka.classifiers.AbstractClassifier.makeCopy(classifier);
-           auxclassifier.buildClassifier(instancesBuffer);
-           classifier = auxclassifier;
-           tree= classifier.toString();
+            classifier.buildClassifier(instancesBuffer);
         }
         catch(Exception e)
         {
-            tree="";
+            classifier=null;
         }
-        return tree;
+        return classifier;
     }
     
-  public static String buildForestHT(ArffFileStream ARFFdataFile, int numTrees,int leafSize)
+  private static ForestModel buildForestHT(InstanceStream ARFFdataFile, int numTrees,int leafSize,int seed,int threads)
+    {
+        HoeffdingTree []forest=trainForestHT(ARFFdataFile,numTrees,leafSize,seed,threads);
+        List<Node> roots=ModelConverter.convertHoeffdingForest(forest);
+        if(roots!=null)
+        {
+            return new ForestModel(roots,null);
+        }
+        StringBuilder rec=new StringBuilder();
+        for(int t=0;t<numTrees;t++)
+        {
+//            System.out.println(forest[t].toString());
+            rec.append("Tree ").append(t+1).append(":\n");
+            rec.append(preprocessTreeHT(forest[t].toString())).append("\n");           
+        }
+        return new ForestModel(null,rec.toString());
+    }
+  /**
+   * Online bagging: the stream is decoded once into a shared buffer and every
+   * tree runs over all of it, giving each instance a Poisson(lamda) weight
+   * drawn from the tree's own generator. The generators are seeded from
+   * seed, so the forest does not depend on how many threads train it.
+   */
+  private static HoeffdingTree[] trainForestHT(InstanceStream ARFFdataFile, int numTrees,int leafSize,int seed,int threads)
     {
         float lamda=6.0f;
-        ARFFdataFile.prepareForUse();
-        moa.classifiers.Classifier []forest = new moa.classifiers.Classifier[numTrees];
-
+        HoeffdingTree []forest = new HoeffdingTree[numTrees];
+        Random seeds=new Random(seed);
+        long []treeSeed=new long[numTrees];
         for(int t=0;t<numTrees;t++)
         {
                HoeffdingTree ht=new HoeffdingTree();
@@ -2195,30 +5468,66 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                forest[t]=ht;
                forest[t].setModelContext(ARFFdataFile.getHeader());
                forest[t].prepareForUse();
+               treeSeed[t]=seeds.nextLong();
         }
+        List<Instance> buffer=new ArrayList<>();
         while (ARFFdataFile.hasMoreInstances()) {
+            buffer.add(ARFFdataFile.nextInstance().getData());
+        }
+        int poolSize=Math.min(threads>0?threads:Runtime.getRuntime().availableProcessors(), numTrees);
+        if(poolSize<=1)
+        {
             for(int t=0;t<numTrees;t++)
             {
-                Random r=new Random();
-                int k = MiscUtils.poisson(lamda, r);
-                if(k>0){
-                       Instance trainInst = ARFFdataFile.nextInstance().getData();
-                       Instance weightedInstance = trainInst.copy();
-                       weightedInstance.setWeight(trainInst.weight() * k);
-                       forest[t].trainOnInstance(weightedInstance);
-                     } 
+                trainTreeHT(forest[t],buffer,lamda,treeSeed[t]);
             }
+            return forest;
         }
-        
-        String rec="";
-        for(int t=0;t<numTrees;t++)
+        ExecutorService pool=Executors.newFixedThreadPool(poolSize, r -> {
+            Thread thread=new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try{
+            List<Future<?>> tasks=new ArrayList<>();
+            for(int t=0;t<numTrees;t++)
+            {
+                HoeffdingTree ht=forest[t];
+                long s=treeSeed[t];
+                tasks.add(pool.submit(() -> trainTreeHT(ht,buffer,lamda,s)));
+            }
+            for(Future<?> task:tasks)
+            {
+                task.get();
+            }
+        }
+        catch(InterruptedException e)
         {
-//            System.out.println(forest[t].toString());
-            rec=rec+"Tree "+(t+1)+":\n";
-            rec=rec+preprocessTreeHT(forest[t].toString())+"\n";           
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
-        return rec;
+        catch(ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause());
+        }
+        finally{
+            pool.shutdown();
+        }
+        return forest;
     } 
+  private static void trainTreeHT(HoeffdingTree ht,List<Instance> buffer,float lamda,long seed)
+    {
+        Random r=new Random(seed);
+        for(Instance trainInst:buffer)
+        {
+            int k = MiscUtils.poisson(lamda, r);
+            if(k>0){
+                   Instance weightedInstance = trainInst.copy();
+                   weightedInstance.setWeight(trainInst.weight() * k);
+                   ht.trainOnInstance(weightedInstance);
+                 } 
+        }
+    }
    private static String preprocessTreeHT(String tree)
     {
         if(tree.equals(""))
@@ -2226,7 +5535,7 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             return "";
         }
         String []rules=tree.split("\r\n");
-        String rec="";
+        StringBuilder rec=new StringBuilder();
         String tab="|   ";
         if(rules.length>4)
         {
@@ -2244,7 +5553,7 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                        int ntab=(int)(rules[i].substring(0, rules[i].indexOf("if")).length())/2;
                        for(int l=0;l<ntab;l++)
                        {
-                           rec=rec+tab;
+                           rec.append(tab);
                        }
                        int j=i+1;
                        if(j<rules.length)
@@ -2261,10 +5570,10 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                                isleaf=true;
                            }
                            
-                           rec=rec+processConditionPart(rule)+nl;
+                           rec.append(processConditionPart(rule)).append(nl);
                            if(isleaf)
                            {
-                               rec=rec+": "+processLeafPart(srule)+"\n";
+                               rec.append(": ").append(processLeafPart(srule)).append("\n");
                                i=j;
                            }
                        }
@@ -2272,14 +5581,14 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                    }
                    else if (rule.startsWith("Leaf"))
                    {
-                            rec=rec+": "+processLeafPart(rule)+"\n";
+                            rec.append(": ").append(processLeafPart(rule)).append("\n");
                    }
                    i++;
                }
             }
         }
         }
-        return rec;
+        return rec.toString();
     }
    private static String processConditionPart(String con)
    {
@@ -2300,57 +5609,65 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
    
     
     
-    public static void createArffFile(String datasetName,String []attrNames,int []attrType,String [][]inDataset, String outFile)
-    {        
+    /**
+     * Builds WEKA instances straight from a batch. The header lists the
+     * nominal domains in order of first appearance, as the temporary ARFF
+     * files of the records did, so learning from it gives the same model
+     * as learning from such a file, without any disk I/O. As when the ARFF
+     * file is loaded, a nominal ? is a missing value and not part of the
+     * domain.
+     */
+    public static weka.core.Instances createWekaInstances(String datasetName,String []attrNames,int []attrType,ColumnarBatch data)
+    {
         int noOfAttr=attrType.length;
-        int numRecords=inDataset.length;
-        File outF=new File(outFile);
-        String rec="@relation "+datasetName+"\n\n";
-        writeToFile(outF, rec);
+        int numRecords=data.getNumRows();
+        AttributeDictionary dictionary=data.getDictionary();
+        ArrayList<weka.core.Attribute> attributes=new ArrayList<>(noOfAttr);
+        int [][]domainIndex=new int[noOfAttr][];
+        int classIndex=-1;
         for(int j=0;j<noOfAttr;j++)
-        {   
-            rec="@attribute "+attrNames[j]+" ";
+        {
             if(attrType[j]==1)
             {
-                rec=rec+ "real\n";
+                attributes.add(new weka.core.Attribute(attrNames[j]));
             }
             else
             {
-                String []domainVal=findDomainValues(inDataset,j);
-                rec=rec+ "{";
-                for(int i=0;i<domainVal.length;i++)
+                if(attrType[j]==2)classIndex=j;
+                int []codes=data.getNominalColumn(j);
+                int missingCode=dictionary.getCode(j, "?");
+                domainIndex[j]=new int[dictionary.getDomainSize(j)];
+                Arrays.fill(domainIndex[j], -1);
+                List<String> domainVal=new ArrayList<>();
+                for(int r=0;r<numRecords;r++)
                 {
-                    if(i==domainVal.length-1)
-                        rec=rec+ domainVal[i];
-                    else
-                        rec=rec+ domainVal[i]+", ";
+                    if(codes[r]!=missingCode && domainIndex[j][codes[r]]<0)
+                    {
+                        domainIndex[j][codes[r]]=domainVal.size();
+                        domainVal.add(dictionary.getValue(j, codes[r]));
+                    }
                 }
-                rec=rec+ "}\n";
+                attributes.add(new weka.core.Attribute(attrNames[j],domainVal));
             }
-            appendToFile(outF, rec);
-        }
-        rec="\n@data\n";
-        appendToFile(outF, rec);
-        for(int j=0;j<numRecords;j++)
-        {
-            rec=String.join(",", inDataset[j]);
-            appendToFile(outF, "\n"+rec);
         }
-    }
-    public static String[] findDomainValues(String [][]inDataset, int attrIndex)
-    {
-        List<String> domainValues = new ArrayList<>();
-        int numRec=inDataset.length;
-        String cval;
-        for(int j=0;j<numRec;j++)
+        weka.core.Instances instances=new weka.core.Instances(datasetName,attributes,numRecords);
+        instances.setClassIndex(classIndex);
+        for(int r=0;r<numRecords;r++)
         {
-            cval=inDataset[j][attrIndex];
-            if(!domainValues.contains(cval))
+            double []values=new double[noOfAttr];
+            for(int j=0;j<noOfAttr;j++)
             {
-                domainValues.add(cval);
-            }            
+                if(attrType[j]==1)
+                    values[j]=data.getNumeric(j, r);
+                else
+                {
+                    int index=domainIndex[j][data.getCode(j, r)];
+                    values[j]=index<0?weka.core.Utils.missingValue():index;
+                }
+            }
+            instances.add(new weka.core.DenseInstance(1.0,values));
         }
-        return domainValues.toArray(new String[0]);
+        return instances;
     }
     //Find the number of conditions of each trees
      public static String[] processTrees(String []trees, int []Loc)
@@ -2419,9 +5736,12 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
             }
             return t;
         }
+    /**
+     * Position of currentAttr in attrNames, or -1 if it is not there.
+     */
     public static int findAttrIndex(String currentAttr, String []attrNames)
         {
-            int t=0;
+            int t=-1;
             for(int i=0;i<attrNames.length;i++)
             {
                 if(attrNames[i].equals(currentAttr))
@@ -2463,13 +5783,13 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
         public static String preprocessTree(String treeStr)
         {            
             String []rules=treeStr.split("\n");
-            String rec="";int t=0;
+            StringBuilder rec=new StringBuilder();int t=0;
             for(int i=0;i<rules.length;i++)
             {
                 if(rules[i].equals("RandomTree"))
                 {
                     t++;
-                    rec=rec+"Tree "+t+":\n";i++;
+                    rec.append("Tree ").append(t).append(":\n");i++;
                    while(i<rules.length)
                    {
                        if(rules[i].equals("RandomTree"))
@@ -2485,14 +5805,14 @@ public class AdaptiveDecisionForest extends AbstractClassifier implements MultiC
                            }
                            if(f==0&&!rules[i].equals("") && !rules[i].equals("=========="))
                            {
-                               rec=rec+rules[i]+"\n";
+                               rec.append(rules[i]).append("\n");
                            }
                            i++;
                        }
                    }
                 }
             }
-            return rec;
+            return rec.toString();
         }
         
      public static double findMaxValue(double[]data,int []attrType)
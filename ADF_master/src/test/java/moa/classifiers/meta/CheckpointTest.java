@@ -0,0 +1,89 @@
+/*
+ *    CheckpointTest.java
+ *    Copyright (C) 2020 Charles Sturt University, Bathurst, NSW, Australia
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.meta;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * A learner restored from a binary checkpoint has the same model as the one
+ * that wrote it, and goes on to learn the same forests as the sequential
+ * learner. A damaged checkpoint is rejected and leaves the current model in
+ * place.
+ */
+public class CheckpointTest extends TestCase {
+    /** Size of the magic, version, length and checksum in front of the payload. */
+    private static final int HEADER_BYTES=24;
+    private File file;
+
+    protected void setUp() throws IOException
+    {
+        file=File.createTempFile("adf", ".ckpt");
+    }
+    protected void tearDown()
+    {
+        file.delete();
+    }
+    public void testRestoredLearnerMatchesSequential() throws IOException
+    {
+        //the checkpoint holds handed over micro-batches only, so stop on a boundary
+        int split=SampleDataStream.train().size()/SampleDataStream.MICRO_BATCH_SIZE/2*SampleDataStream.MICRO_BATCH_SIZE;
+        AdaptiveDecisionForest adf=SampleDataStream.learner("");
+        SampleDataStream.train(adf,0,split);
+        adf.saveCheckpoint(file.getPath());
+        AdaptiveDecisionForest restored=SampleDataStream.learner("");
+        restored.loadCheckpoint(file.getPath());
+        SampleDataStream.assertSameModel(new SampleDataStream.Model(adf,0),restored);
+        SampleDataStream.train(restored,split,SampleDataStream.train().size());
+        SampleDataStream.assertSameModel(SampleDataStream.sequential(),restored);
+    }
+    public void testCorruptedCheckpointIsRejected() throws IOException
+    {
+        AdaptiveDecisionForest adf=SampleDataStream.learner("");
+        SampleDataStream.train(adf,0,2*SampleDataStream.MICRO_BATCH_SIZE);
+        adf.saveCheckpoint(file.getPath());
+        byte []saved=Files.readAllBytes(file.toPath());
+        SampleDataStream.Model before=new SampleDataStream.Model(adf,0);
+
+        byte []flipped=saved.clone();
+        flipped[HEADER_BYTES+(saved.length-HEADER_BYTES)/2]^=1;
+        assertRejected(adf,flipped,"Checksum mismatch");
+        assertRejected(adf,Arrays.copyOf(saved,saved.length-1),null);
+        byte []magic=saved.clone();
+        magic[0]^=1;
+        assertRejected(adf,magic,"not an ADF checkpoint");
+        SampleDataStream.assertSameModel(before,adf);
+    }
+    private void assertRejected(AdaptiveDecisionForest adf,byte []content,String message) throws IOException
+    {
+        Files.write(file.toPath(),content);
+        try{
+            adf.loadCheckpoint(file.getPath());
+            fail("damaged checkpoint was loaded");
+        }
+        catch(IOException e)
+        {
+            if(message!=null)
+                assertTrue(e.getMessage(),e.getMessage().contains(message));
+        }
+    }
+}
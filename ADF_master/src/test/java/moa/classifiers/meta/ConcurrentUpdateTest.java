@@ -0,0 +1,42 @@
+/*
+ *    ConcurrentUpdateTest.java
+ *    Copyright (C) 2020 Charles Sturt University, Bathurst, NSW, Australia
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.meta;
+
+import junit.framework.TestCase;
+
+/**
+ * Updating PF on a thread of its own while AF and TF are updated (-C) gives
+ * the same forests as the sequential update. With -P as well, both sides
+ * share the batch statistics, the dictionary and the repair pool, so this
+ * also guards the locks they rely on.
+ */
+public class ConcurrentUpdateTest extends TestCase {
+    public void testConcurrentUpdateMatchesSequential()
+    {
+        AdaptiveDecisionForest adf=SampleDataStream.learner("-C");
+        SampleDataStream.train(adf,0,SampleDataStream.train().size());
+        SampleDataStream.assertSameModel(SampleDataStream.sequential(),adf);
+    }
+    public void testConcurrentUpdateWithParallelRepairMatchesSequential()
+    {
+        AdaptiveDecisionForest adf=SampleDataStream.learner("-C -P 4");
+        SampleDataStream.train(adf,0,SampleDataStream.train().size());
+        SampleDataStream.assertSameModel(SampleDataStream.sequential(),adf);
+    }
+}
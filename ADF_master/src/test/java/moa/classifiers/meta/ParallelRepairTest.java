@@ -0,0 +1,37 @@
+/*
+ *    ParallelRepairTest.java
+ *    Copyright (C) 2020 Charles Sturt University, Bathurst, NSW, Australia
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.meta;
+
+import junit.framework.TestCase;
+
+/**
+ * Repairing the trees of a forest on several threads (-P) gives the same
+ * forests as repairing them one after the other.
+ */
+public class ParallelRepairTest extends TestCase {
+    public void testParallelRepairMatchesSequential()
+    {
+        SampleDataStream.Model expected=SampleDataStream.sequential();
+        //the comparison only covers parallel repair if a batch repairs several trees
+        assertTrue("no batch repaired more than one PF tree", expected.maxTreesRepaired>1);
+        AdaptiveDecisionForest adf=SampleDataStream.learner("-P 4");
+        SampleDataStream.train(adf,0,SampleDataStream.train().size());
+        SampleDataStream.assertSameModel(expected,adf);
+    }
+}
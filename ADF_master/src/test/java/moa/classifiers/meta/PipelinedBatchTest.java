@@ -0,0 +1,95 @@
+/*
+ *    PipelinedBatchTest.java
+ *    Copyright (C) 2020 Charles Sturt University, Bathurst, NSW, Australia
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.meta;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Learning the SampleData batches with the pipelined loop of
+ * learnFromBatchDataset (-Q) writes the same accuracies and the same
+ * classifier dumps as the sequential loop.
+ */
+public class PipelinedBatchTest extends TestCase {
+    private static final String PADDING="_test";
+    private final List<File> dirs=new ArrayList<>();
+
+    protected void tearDown()
+    {
+        for(File dir:dirs)
+        {
+            for(File f:dir.listFiles())
+            {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+    public void testPipelinedLoopMatchesSequential() throws IOException
+    {
+        File sequential=run(new String[]{"-E","10","-m","20"});
+        File pipelined=run(new String[]{"-E","10","-m","20","-Q"});
+        assertEquals("accuracy column", accuracies(sequential), accuracies(pipelined));
+        for(int b=1;b<=5;b++)
+        {
+            String dump="trainbatch"+b+"_finalclassifier.txt";
+            assertEquals(dump, read(new File(sequential,dump)), read(new File(pipelined,dump)));
+        }
+    }
+    /**
+     * Runs learnFromBatchDataset on a copy of SampleData and returns the
+     * directory of the copy, which then has the accuracy file and the dumps.
+     */
+    private File run(String []options) throws IOException
+    {
+        File dir=Files.createTempDirectory("adf").toFile();
+        dirs.add(dir);
+        for(File f:SampleDataStream.dir().listFiles())
+        {
+            Files.copy(f.toPath(), new File(dir,f.getName()).toPath());
+        }
+        new AdaptiveDecisionForest().learnFromBatchDataset(new File(dir,"batch-log.txt").getPath(),-1,options,PADDING);
+        return dir;
+    }
+    /**
+     * The batch and accuracy of every row of the accuracy file; the times
+     * differ from run to run.
+     */
+    private static List<String> accuracies(File dir) throws IOException
+    {
+        List<String> rows=new ArrayList<>();
+        for(String line:Files.readAllLines(new File(dir,"batch-log_accuracy"+PADDING+".csv").toPath()))
+        {
+            String []cols=line.split(",");
+            if(cols.length>=2 && cols[0].startsWith("trainbatch"))
+                rows.add(cols[0]+","+cols[1]);
+        }
+        assertEquals("rows in the accuracy file", 5, rows.size());
+        return rows;
+    }
+    private static String read(File file) throws IOException
+    {
+        assertTrue(file+" not written", file.isFile());
+        return new String(Files.readAllBytes(file.toPath()));
+    }
+}
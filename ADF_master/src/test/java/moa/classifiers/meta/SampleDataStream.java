@@ -0,0 +1,166 @@
+/*
+ *    SampleDataStream.java
+ *    Copyright (C) 2020 Charles Sturt University, Bathurst, NSW, Australia
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.meta;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.Assert;
+import moa.streams.ArffFileStream;
+
+/**
+ * The train and test batches of SampleData, streamed through
+ * AdaptiveDecisionForest in micro-batches, and the model a sequential
+ * learner gets from them. The tests of the faster update modes compare
+ * their PF, AF and TF and their votes on every test batch with it.
+ */
+final class SampleDataStream {
+    /** 10 trees and small leaves, so that a batch repairs several trees. */
+    static final String BASE_OPTIONS="-E 10 -m 20 -N 2000";
+    static final int MICRO_BATCH_SIZE=2000;
+    private static final int NUM_BATCHES=5;
+    private static List<Instance> train;
+    private static List<Instance> test;
+    private static Model sequential;
+
+    private SampleDataStream()
+    {
+    }
+    /**
+     * The directory is taken from the adf.sampleData system property, or
+     * looked up from the working directory.
+     */
+    static File dir()
+    {
+        String dir=System.getProperty("adf.sampleData");
+        if(dir!=null)
+            return new File(dir);
+        for(String candidate:new String[]{"SampleData","../SampleData"})
+        {
+            if(new File(candidate,"trainbatch1.arff").isFile())
+                return new File(candidate);
+        }
+        throw new IllegalStateException("SampleData not found, set -Dadf.sampleData=<dir>");
+    }
+    static synchronized List<Instance> train()
+    {
+        if(train==null)
+        {
+            train=new ArrayList<>();
+            test=new ArrayList<>();
+            for(int b=1;b<=NUM_BATCHES;b++)
+            {
+                train.addAll(read(new File(dir(),"trainbatch"+b+".arff")));
+                test.addAll(read(new File(dir(),"testbatch"+b+".arff")));
+            }
+        }
+        return train;
+    }
+    static synchronized List<Instance> test()
+    {
+        train();
+        return test;
+    }
+    /**
+     * A learner with BASE_OPTIONS and the given options on top.
+     */
+    static AdaptiveDecisionForest learner(String options)
+    {
+        AdaptiveDecisionForest adf=new AdaptiveDecisionForest();
+        adf.getOptions().setViaCLIString((BASE_OPTIONS+" "+options).trim());
+        adf.prepareForUse();
+        return adf;
+    }
+    static void train(AdaptiveDecisionForest adf,int from,int to)
+    {
+        List<Instance> instances=train();
+        for(int i=from;i<to;i++)
+        {
+            adf.trainOnInstance(instances.get(i));
+        }
+    }
+    /**
+     * The model of a sequential learner trained on all train batches,
+     * computed once and shared by the tests.
+     */
+    static synchronized Model sequential()
+    {
+        if(sequential==null)
+        {
+            AdaptiveDecisionForest adf=learner("");
+            List<Instance> instances=train();
+            int repaired=0;
+            for(int i=0;i<instances.size();i++)
+            {
+                adf.trainOnInstance(instances.get(i));
+                if((i+1)%MICRO_BATCH_SIZE==0)
+                {
+                    repaired=Math.max(repaired,adf.getMetrics().getOrDefault("PF trees repaired",0.0).intValue());
+                }
+            }
+            sequential=new Model(adf,repaired);
+        }
+        return sequential;
+    }
+    static void assertSameModel(Model expected,AdaptiveDecisionForest actual)
+    {
+        Model model=new Model(actual,0);
+        Assert.assertEquals("PF, AF and TF", expected.text, model.text);
+        int differing=0;
+        for(int i=0;i<expected.votes.length;i++)
+        {
+            if(!Arrays.equals(expected.votes[i], model.votes[i]))differing++;
+        }
+        Assert.assertEquals("test records with different votes", 0, differing);
+    }
+    private static List<Instance> read(File file)
+    {
+        ArffFileStream stream=new ArffFileStream(file.getPath(),-1);
+        stream.prepareForUse();
+        List<Instance> instances=new ArrayList<>();
+        while(stream.hasMoreInstances())
+        {
+            instances.add(stream.nextInstance().getData());
+        }
+        return instances;
+    }
+
+    /**
+     * The forests of a learner as text, its votes on the test batches and
+     * the largest number of PF trees a single batch repaired.
+     */
+    static final class Model {
+        final String text;
+        final double [][]votes;
+        final int maxTreesRepaired;
+        Model(AdaptiveDecisionForest adf,int maxTreesRepaired)
+        {
+            this.text=adf.describeForests();
+            List<Instance> instances=test();
+            this.votes=new double[instances.size()][];
+            for(int i=0;i<votes.length;i++)
+            {
+                votes[i]=adf.getVotesForInstance(instances.get(i));
+            }
+            this.maxTreesRepaired=maxTreesRepaired;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *    AbstractReadBenchmark.java
+ *    Copyright (C) 2020 Charles Sturt University, Bathurst, NSW, Australia
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *    
+ */
+package moa.classifiers.meta;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks that leave the forest as it is: routing a batch through it
+ * (the searchTree of the original implementation), perturbation detection,
+ * and building forests from scratch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public abstract class AbstractReadBenchmark {
+    protected Workload workload;
+
+    protected abstract Workload createWorkload();
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        workload=createWorkload();
+    }
+    @Benchmark
+    public int route()
+    {
+        return workload.route();
+    }
+    @Benchmark
+    public int identifyPerturbedLeaves()
+    {
+        return workload.identifyPerturbedLeaves();
+    }
+    @Benchmark
+    public Object buildForest()
+    {
+        return workload.buildForest();
+    }
+    @Benchmark
+    public Object buildForestHT()
+    {
+        return workload.buildForestHT();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *    AbstractRepairBenchmark.java
+ *    Copyright (C) 2020 Charles Sturt University, Bathurst, NSW, Australia
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *    
+ */
+package moa.classifiers.meta;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks that change the forest. Each call gets a forest freshly built
+ * on the first batch, outside the measured time, so every call applies the
+ * update batch to the same forest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public abstract class AbstractRepairBenchmark {
+    protected Workload workload;
+
+    protected abstract Workload createWorkload();
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        workload=createWorkload();
+    }
+    @Setup(Level.Invocation)
+    public void freshForest()
+    {
+        workload.rebuild();
+    }
+    @Benchmark
+    public void updateLeafStats()
+    {
+        workload.updateLeafStats();
+    }
+    @Benchmark
+    public void expandForestByISAT()
+    {
+        workload.expandForestByISAT();
+    }
+}
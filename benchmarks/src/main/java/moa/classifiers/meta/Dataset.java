@@ -0,0 +1,206 @@
+/*
+ *    Dataset.java
+ *    Copyright (C) 2020 Charles Sturt University, Bathurst, NSW, Australia
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *    
+ */
+package moa.classifiers.meta;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import moa.streams.ArffFileStream;
+
+/**
+ * The records of a first batch and of an update batch, in the form
+ * ADFLearner takes them in streaming mode, from either a synthetic
+ * generator or the house data in SampleData.
+ */
+class Dataset {
+    private final String name;
+    private final String []attrNames;
+    private final int []attrType;
+    private final String [][]firstBatch;
+    private final String [][]updateBatch;
+
+    private Dataset(String name,String []attrNames,int []attrType,String [][]firstBatch,String [][]updateBatch)
+    {
+        this.name=name;
+        this.attrNames=attrNames;
+        this.attrType=attrType;
+        this.firstBatch=firstBatch;
+        this.updateBatch=updateBatch;
+    }
+    /**
+     * Numeric attributes drawn uniformly from [0,1) and a class given by the
+     * largest of numClasses random linear functions, with 5% label noise.
+     * The update batch is drawn from a shifted range, so that it reaches
+     * outside the ranges the trees were built on and ISAT has to grow them.
+     */
+    static Dataset synthetic(int numRecords,int numAttrs,int numClasses,long seed)
+    {
+        Random random=new Random(seed);
+        double [][]weights=new double[numClasses][numAttrs];
+        for(int c=0;c<numClasses;c++)
+        {
+            for(int j=0;j<numAttrs;j++)
+            {
+                weights[c][j]=random.nextGaussian();
+            }
+        }
+        String []attrNames=new String[numAttrs+1];
+        int []attrType=new int[numAttrs+1];
+        for(int j=0;j<numAttrs;j++)
+        {
+            attrNames[j]="a"+j;
+            attrType[j]=1;
+        }
+        attrNames[numAttrs]="class";
+        attrType[numAttrs]=2;
+        return new Dataset("synthetic",attrNames,attrType,
+                syntheticBatch(random,weights,numRecords,0.0),
+                syntheticBatch(random,weights,numRecords,0.25));
+    }
+    private static String [][]syntheticBatch(Random random,double [][]weights,int numRecords,double shift)
+    {
+        int numClasses=weights.length;
+        int numAttrs=weights[0].length;
+        String [][]records=new String[numRecords][numAttrs+1];
+        double []x=new double[numAttrs];
+        for(int r=0;r<numRecords;r++)
+        {
+            for(int j=0;j<numAttrs;j++)
+            {
+                x[j]=random.nextDouble()+shift;
+                records[r][j]=Double.toString(x[j]);
+            }
+            int best=0;
+            double bestScore=Double.NEGATIVE_INFINITY;
+            for(int c=0;c<numClasses;c++)
+            {
+                double score=0;
+                for(int j=0;j<numAttrs;j++)
+                {
+                    score+=weights[c][j]*(x[j]-0.5);
+                }
+                if(score>bestScore)
+                {
+                    bestScore=score;
+                    best=c;
+                }
+            }
+            if(random.nextDouble()<0.05)best=random.nextInt(numClasses);
+            records[r][numAttrs]="c"+best;
+        }
+        return records;
+    }
+    /**
+     * The house batches of SampleData: trainbatch1 as the first batch and
+     * trainbatch{batch} as the update batch. The directory is taken from
+     * the adf.sampleData system property, or looked up from the working
+     * directory.
+     */
+    static Dataset house(int batch)
+    {
+        File dir=sampleDataDir();
+        ArffFileStream first=open(new File(dir,"trainbatch1.arff"));
+        ArffFileStream update=open(new File(dir,"trainbatch"+batch+".arff"));
+        InstancesHeader header=first.getHeader();
+        int numAttr=header.numAttributes();
+        String []attrNames=new String[numAttr];
+        int []attrType=new int[numAttr];
+        for(int i=0;i<numAttr;i++)
+        {
+            attrNames[i]=header.attribute(i).name();
+            if(i==header.classIndex())
+                attrType[i]=2;
+            else if(header.attribute(i).isNumeric())
+                attrType[i]=1;
+            else
+                attrType[i]=0;
+        }
+        return new Dataset(header.getRelationName(),attrNames,attrType,readRecords(first),readRecords(update));
+    }
+    private static File sampleDataDir()
+    {
+        String dir=System.getProperty("adf.sampleData");
+        if(dir!=null)
+            return new File(dir);
+        for(String candidate:new String[]{"SampleData","../SampleData"})
+        {
+            if(new File(candidate,"trainbatch1.arff").isFile())
+                return new File(candidate);
+        }
+        throw new IllegalStateException("SampleData not found, set -Dadf.sampleData=<dir>");
+    }
+    private static ArffFileStream open(File file)
+    {
+        ArffFileStream stream=new ArffFileStream(file.getPath(),-1);
+        stream.prepareForUse();
+        return stream;
+    }
+    private static String [][]readRecords(ArffFileStream stream)
+    {
+        List<String[]> records=new ArrayList<>();
+        while(stream.hasMoreInstances())
+        {
+            Instance instance=stream.nextInstance().getData();
+            int numAttr=instance.numAttributes();
+            String []record=new String[numAttr];
+            for(int i=0;i<numAttr;i++)
+            {
+                if(instance.isMissing(i))
+                    record[i]="?";
+                else if(instance.attribute(i).isNumeric())
+                    record[i]=Double.toString(instance.value(i));
+                else
+                    record[i]=instance.attribute(i).value((int)instance.value(i));
+            }
+            records.add(record);
+        }
+        return records.toArray(new String[records.size()][]);
+    }
+    String getName()
+    {
+        return name;
+    }
+    String []getAttrNames()
+    {
+        return attrNames;
+    }
+    int []getAttrType()
+    {
+        return attrType;
+    }
+    int getClassIndex()
+    {
+        for(int i=0;i<attrType.length;i++)
+        {
+            if(attrType[i]==2)return i;
+        }
+        return attrType.length-1;
+    }
+    String [][]getFirstBatch()
+    {
+        return firstBatch;
+    }
+    String [][]getUpdateBatch()
+    {
+        return updateBatch;
+    }
+}
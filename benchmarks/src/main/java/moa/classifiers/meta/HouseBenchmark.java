@@ -0,0 +1,38 @@
+/*
+ *    HouseBenchmark.java
+ *    Copyright (C) 2020 Charles Sturt University, Bathurst, NSW, Australia
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *    
+ */
+package moa.classifiers.meta;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * The house batches of SampleData: a forest built on trainbatch1 and
+ * updated with one of the later batches.
+ */
+public class HouseBenchmark extends AbstractReadBenchmark {
+    @Param({"2", "3", "4", "5"})
+    public int batch;
+    @Param({"10"})
+    public int trees;
+
+    @Override
+    protected Workload createWorkload()
+    {
+        return new Workload(Dataset.house(batch), trees);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ *    SyntheticRepairBenchmark.java
+ *    Copyright (C) 2020 Charles Sturt University, Bathurst, NSW, Australia
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *    
+ */
+package moa.classifiers.meta;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Synthetic data, parameterised by the number of records per batch, the
+ * number of attributes, the number of classes and the forest size.
+ */
+public class SyntheticRepairBenchmark extends AbstractRepairBenchmark {
+    @Param({"10000"})
+    public int records;
+    @Param({"20"})
+    public int attributes;
+    @Param({"2", "5"})
+    public int classes;
+    @Param({"10", "50"})
+    public int trees;
+
+    @Override
+    protected Workload createWorkload()
+    {
+        return new Workload(Dataset.synthetic(records, attributes, classes, 1), trees);
+    }
+}
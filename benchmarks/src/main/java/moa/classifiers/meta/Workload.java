@@ -0,0 +1,86 @@
+/*
+ *    Workload.java
+ *    Copyright (C) 2020 Charles Sturt University, Bathurst, NSW, Australia
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *    
+ */
+package moa.classifiers.meta;
+
+/**
+ * A forest built on a first batch and a second batch to update it with, the
+ * setting every benchmark measures. Two copies of the update batch are kept,
+ * because the trees cache the routing of the last batch they have seen; the
+ * read-only benchmarks alternate between them so that every call routes.
+ */
+class Workload {
+    private final AdaptiveDecisionForest.BenchmarkAccess access;
+    private final String [][]firstRecords;
+    private final int numTrees;
+    private final Object first;
+    private final Object []update=new Object[2];
+    private Object forest;
+    private int next;
+
+    Workload(Dataset dataset,int numTrees)
+    {
+        AdaptiveDecisionForest adf=new AdaptiveDecisionForest();
+        adf.ensembleSizeOption.setValue(numTrees);
+        access=new AdaptiveDecisionForest.BenchmarkAccess(adf,dataset.getName(),
+                dataset.getAttrNames(),dataset.getAttrType(),dataset.getClassIndex());
+        this.firstRecords=dataset.getFirstBatch();
+        this.numTrees=numTrees;
+        first=access.batch(firstRecords);
+        update[0]=access.batch(dataset.getUpdateBatch());
+        update[1]=access.batch(dataset.getUpdateBatch());
+        rebuild();
+    }
+    /**
+     * Builds a new forest on the first batch, for the benchmarks that
+     * change the forest.
+     */
+    final void rebuild()
+    {
+        forest=access.buildForest(first, numTrees);
+    }
+    Object nextUpdate()
+    {
+        next^=1;
+        return update[next];
+    }
+    int route()
+    {
+        return access.route(forest, nextUpdate());
+    }
+    int identifyPerturbedLeaves()
+    {
+        return access.identifyPerturbedLeaves(forest, nextUpdate());
+    }
+    void updateLeafStats()
+    {
+        access.updateLeafStats(forest, update[0]);
+    }
+    void expandForestByISAT()
+    {
+        access.expandForestByISAT(forest, update[0]);
+    }
+    Object buildForestHT()
+    {
+        return access.buildForestHT(first, numTrees);
+    }
+    Object buildForest()
+    {
+        return access.buildForest(first, numTrees);
+    }
+}